@@ -34,7 +34,6 @@ import java.util.Arrays;
 import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import java.util.stream.Collectors;
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.CommandLineParser;
 import org.apache.commons.cli.DefaultParser;
@@ -65,6 +64,11 @@ public class ColorUtil {
         }
         
         int threads = 4;
+        int gridSize = 0;
+        String cubeFileName = null;
+        String exportCubeFileName = null;
+        List<LutAdjustment> lutAdjustmentList = new ArrayList<>();
+        int lutEngine = LutKernel.ENGINE_DIRECT; // the auto thresholds are not tuned yet (see LutKernel)
         int quality = 87;
         int skip = 0;
         boolean noRecolor = false;
@@ -73,6 +77,9 @@ public class ColorUtil {
         int startWithTiffDirIndex = 0; // set to higher numbers for troubleshooting (runs faster)
         boolean dummyTile = false;
         boolean noRecode = false;
+        String cacheDirName = null;
+        int readAheadMb = 64;
+        int[] stageWorkers = null; // read, decode, recolor and encode; null = 1 reader, max(1, threads / 4) recolorers and the rest split between decoders and encoders
 
         Options options = new Options();
 
@@ -110,6 +117,54 @@ public class ColorUtil {
         Option optionNoRecode = new Option("x", "norecode", false, String.format("if specified, no tiles are rewritten; this is intended to be used with the dummytile option to limit the scope of the changes to the SVS file"));
         optionNoRecode.setRequired(false);
         options.addOption(optionNoRecode);
+
+        Option optionReadAhead = new Option("b", "readahead", true, String.format("memory for reading tiles ahead of the recoloring threads in Mb; 0 = read each tile when it is needed, integer (default = %d)", readAheadMb));
+        optionReadAhead.setRequired(false);
+        optionReadAhead.setType(Number.class);
+        options.addOption(optionReadAhead);
+
+        Option optionPipeline = new Option("p", "pipeline", true, String.format("number of parallel workers for each of the read, decode, recolor and encode stages of recoloring, four comma-separated integers (e.g., -p 1,4,2,4) (default = threads split across the stages: 1 read, threads/4 recolor and the rest split between decode and encode)"));
+        optionPipeline.setRequired(false);
+        options.addOption(optionPipeline);
+
+        Option optionGrid = new Option("g", "grid", true, String.format("compute the color lookup table by transforming only the colors on a grid of this many points per component (e.g., 17, 33 or 65) and interpolating the rest, reporting the error; 0 = transform every color, integer (default = %d)", gridSize));
+        optionGrid.setRequired(false);
+        optionGrid.setType(Number.class);
+        options.addOption(optionGrid);
+
+        Option optionCube = new Option("c", "cube", true, String.format("read the color lookup table from this .cube file (any size, interpolated to 256x256x256) instead of computing it from the ICC profile (default = compute from the ICC profile)"));
+        optionCube.setRequired(false);
+        options.addOption(optionCube);
+
+        Option optionExportCube = new Option("e", "exportcube", true, String.format("write the 256x256x256 color lookup table to this .cube file (default = do not write)"));
+        optionExportCube.setRequired(false);
+        options.addOption(optionExportCube);
+
+        Option optionGamma = new Option("y", "gamma", true, String.format("after the ICC correction, apply this gamma (> 1 brightens), decimal (default = no gamma)"));
+        optionGamma.setRequired(false);
+        optionGamma.setType(Number.class);
+        options.addOption(optionGamma);
+
+        Option optionGain = new Option("i", "gain", true, String.format("after the ICC correction, multiply the R,G,B components by these gains in linear light, decimals (e.g., -i 1.05,1,0.95) (default = no gain)"));
+        optionGain.setRequired(false);
+        options.addOption(optionGain);
+
+        Option optionWhitePoint = new Option("w", "whitepoint", true, String.format("after the ICC correction, scale the R,G,B components in linear light so that this color becomes white, integers 1 - 255 (e.g., -w 235,232,240) (default = no white point adaptation)"));
+        optionWhitePoint.setRequired(false);
+        options.addOption(optionWhitePoint);
+
+        Option optionSaturation = new Option("u", "saturation", true, String.format("after the ICC correction, scale saturation by this factor (0 = grayscale), decimal (default = no saturation change)"));
+        optionSaturation.setRequired(false);
+        optionSaturation.setType(Number.class);
+        options.addOption(optionSaturation);
+
+        Option optionLutEngine = new Option("l", "lutengine", true, String.format("how tile pixels are looked up in the color lookup table: direct (every pixel), memo (each distinct color of a tile once), auto (memo for tiles with many distinct colors), grid (interpolated from a 33x33x33 table that fits in the CPU cache, reporting the error) or simd (Vector API gathers; Java 17+ with --add-modules jdk.incubator.vector) (default = %s)", LutKernel.ENGINE_NAMES[lutEngine]));
+        optionLutEngine.setRequired(false);
+        options.addOption(optionLutEngine);
+
+        Option optionCache = new Option("k", "cache", true, String.format("cache directory for TIFF directory indexes and color lookup tables; reopening a slide with an index in this directory skips parsing its TIFF directories and a slide with a cached color lookup table for its ICC profile skips computing it (default = no cache)"));
+        optionCache.setRequired(false);
+        options.addOption(optionCache);
         
         CommandLineParser parser = new DefaultParser();
         HelpFormatter formatter = new HelpFormatter();
@@ -125,6 +180,53 @@ public class ColorUtil {
             if(cmd.hasOption(optionAnnotate)) { annotate = true; }
             if(cmd.hasOption(optionDummyTile)) { dummyTile = true; }
             if(cmd.hasOption(optionNoRecode)) { noRecode = true; }
+            if(cmd.hasOption(optionReadAhead)) { readAheadMb = ((Long)cmd.getParsedOptionValue(optionReadAhead)).intValue(); }
+            if(cmd.hasOption(optionPipeline)) {
+                stageWorkers = new int[4];
+                String[] stageWorkersValues = cmd.getOptionValue(optionPipeline).split(",");
+                if(stageWorkersValues.length != 4) { throw new ParseException("pipeline must be four comma-separated integers > 0"); }
+                for(int x = 0; x < 4; x++) {
+                    try { stageWorkers[x] = Integer.parseInt(stageWorkersValues[x].trim()); }
+                    catch(NumberFormatException e) { throw new ParseException("pipeline must be four comma-separated integers > 0"); }
+                    if(stageWorkers[x] < 1) { throw new ParseException("pipeline must be four comma-separated integers > 0"); }
+                }
+            }
+            if(cmd.hasOption(optionGrid)) { gridSize = ((Long)cmd.getParsedOptionValue(optionGrid)).intValue(); }
+            if(gridSize != 0 && (gridSize < 2 || gridSize > 0x100)) { throw new ParseException("grid must be 0 or 2 - 256"); }
+            if(cmd.hasOption(optionCube)) { cubeFileName = cmd.getOptionValue(optionCube); }
+            if(cmd.hasOption(optionExportCube)) { exportCubeFileName = cmd.getOptionValue(optionExportCube); }
+            if(cmd.hasOption(optionGamma)) {
+                float gamma = ((Number)cmd.getParsedOptionValue(optionGamma)).floatValue();
+                if(gamma <= 0) { throw new ParseException("gamma must be > 0"); }
+                lutAdjustmentList.add(LutAdjustment.gamma(gamma));
+            }
+            if(cmd.hasOption(optionGain)) {
+                float[] gain = new float[3];
+                String[] gainValues = cmd.getOptionValue(optionGain).split(",");
+                if(gainValues.length != 3) { throw new ParseException("gain must be three comma-separated decimals"); }
+                for(int x = 0; x < 3; x++) {
+                    try { gain[x] = Float.parseFloat(gainValues[x].trim()); }
+                    catch(NumberFormatException e) { throw new ParseException("gain must be three comma-separated decimals"); }
+                }
+                lutAdjustmentList.add(LutAdjustment.gain(gain));
+            }
+            if(cmd.hasOption(optionWhitePoint)) {
+                int[] whitePoint = new int[3];
+                String[] whitePointValues = cmd.getOptionValue(optionWhitePoint).split(",");
+                if(whitePointValues.length != 3) { throw new ParseException("white point must be three comma-separated integers 1 - 255"); }
+                for(int x = 0; x < 3; x++) {
+                    try { whitePoint[x] = Integer.parseInt(whitePointValues[x].trim()); }
+                    catch(NumberFormatException e) { throw new ParseException("white point must be three comma-separated integers 1 - 255"); }
+                    if(whitePoint[x] < 1 || whitePoint[x] > 255) { throw new ParseException("white point must be three comma-separated integers 1 - 255"); }
+                }
+                lutAdjustmentList.add(LutAdjustment.whitePoint(whitePoint));
+            }
+            if(cmd.hasOption(optionSaturation)) { lutAdjustmentList.add(LutAdjustment.saturation(((Number)cmd.getParsedOptionValue(optionSaturation)).floatValue())); }
+            if(cmd.hasOption(optionLutEngine)) {
+                lutEngine = Arrays.asList(LutKernel.ENGINE_NAMES).indexOf(cmd.getOptionValue(optionLutEngine));
+                if(lutEngine < 0) { throw new ParseException(String.format("lutengine must be one of %s", String.join(", ", LutKernel.ENGINE_NAMES))); }
+            }
+            if(cmd.hasOption(optionCache)) { cacheDirName = cmd.getOptionValue(optionCache); }
             if(cmd.getArgs().length != 1) { throw new ParseException("no file specified"); }
             if(!cmd.getArgs()[0].toLowerCase().endsWith(".svs")) { throw new ParseException("file name must have a 'svs' extension"); }
         }
@@ -134,24 +236,83 @@ public class ColorUtil {
             System.exit(1);
         }
         
-        final SVSFile svsFile = new SVSFile(cmd.getArgs()[0]);
+        final SVSFile svsFile = new SVSFile(cmd.getArgs()[0], cacheDirName);
+        svsFile.lutEngine = lutEngine;
+        if(lutEngine == LutKernel.ENGINE_SIMD && !LutSimd.isAvailable()) {
+            logger.log(Level.WARNING, "the simd engine needs Java 17+ started with --add-modules jdk.incubator.vector, using scalar lookups");
+        }
 
-        svsFile.computeLut(threads);
+        if(!noRecolor || exportCubeFileName != null) {
+            svsFile.lutAdjustmentList = lutAdjustmentList;
+            if(cubeFileName != null) {
+                svsFile.loadLut(cubeFileName, threads);
+            }
+            else {
+                svsFile.computeLut(threads, gridSize);
+            }
+            if(lutEngine == LutKernel.ENGINE_GRID) {
+                svsFile.buildLutGrid();
+            }
+            if(exportCubeFileName != null) {
+                svsFile.exportLut(exportCubeFileName);
+            }
+        }
         
-        logger.log(Level.INFO, String.format("recoloring tiles in %d threads", threads));
+        if(readAheadMb > 0) {
+            svsFile.tileReadAhead = new TileReadAhead(svsFile, startWithTiffDirIndex, readAheadMb * 1024L * 1024L);
+            Thread readAheadThread = new Thread(svsFile.tileReadAhead);
+            readAheadThread.setDaemon(true);
+            readAheadThread.start();
+            logger.log(Level.INFO, String.format("reading tiles ahead in up to %d Mb of buffers", readAheadMb));
+        }
+
+        // the decode, recolor and encode stages are CPU bound, so by default
+        // the threads are split across the stages rather than given to each;
+        // a recolor is one table lookup per pixel, far cheaper than JPEG
+        // decoding or encoding
+        if(stageWorkers == null) {
+            int recolorWorkers = Math.max(1, threads / 4);
+            int codecWorkers = Math.max(2, threads - 1 - recolorWorkers);
+            stageWorkers = new int[] { 1, codecWorkers / 2, recolorWorkers, codecWorkers - codecWorkers / 2 };
+        }
+
+        RecolorRunner recolorRunner = null;
+        if(
+            svsFile.tiffDirList.get(0).description.startsWith("Aperio Leica Biosystems GT450 v1.0.1")
+            || svsFile.tiffDirList.get(0).description.startsWith("Aperio Leica Biosystems GT450 DX v1.2.0")
+        ) {
+            recolorRunner = new RecolorRunnerGT450(svsFile, quality, skip, noRecolor, annotate, startWithTiffDirIndex, dummyTile, noRecode);
+        }
+        else if(svsFile.tiffDirList.get(0).description.startsWith("Aperio Image Library v12.0.15")) {
+            recolorRunner = new RecolorRunnerAT2(svsFile, quality, skip, noRecolor, annotate, startWithTiffDirIndex, dummyTile, noRecode);
+        }
+        else {
+            System.err.println("unknown scanner - using GT450 runner");
+            recolorRunner = new RecolorRunnerGT450(svsFile, quality, skip, noRecolor, annotate, startWithTiffDirIndex, dummyTile, noRecode);
+            //System.exit(1);
+        }
+        svsFile.tileScheduler = new TileScheduler(svsFile, startWithTiffDirIndex, skip, stageWorkers[0]);
+        // the recolored tiles are written as they are collected; the read
+        // workers stay within a window of tiles ahead of the writer
+        svsFile.tileCollector = new TileCollector(Math.max(TileCollector.WINDOW_TILES, 2 * (skip + 1)));
+        final RecolorPipeline recolorPipeline = new RecolorPipeline(recolorRunner, stageWorkers[0], stageWorkers[1], stageWorkers[2], stageWorkers[3]);
+
+        logger.log(Level.INFO, String.format("recoloring tiles with %d read, %d decode, %d recolor and %d encode workers", stageWorkers[0], stageWorkers[1], stageWorkers[2], stageWorkers[3]));
 
         Thread statusThread = new Thread(new Runnable() {
             @Override
             public void run() {
-                int tileCount = svsFile.tiffDirList.stream().mapToInt(x -> x.tilesInSVSOrder != null ? x.tilesInSVSOrder.length : 0).sum();
+                int tileCount = svsFile.tiffDirList.stream().mapToInt(x -> x.tileOffsets != null ? x.tileOffsets.length : 0).sum();
                 try {
                     while(true) {
-                        logger.log(Level.INFO, String.format("%d of %d tiles recolored (%4.1f%% complete)", svsFile.nextTileNo, tileCount, 100f * svsFile.nextTileNo / tileCount));
+                        logger.log(Level.INFO, String.format("%d of %d tiles recolored (%4.1f%% complete)", svsFile.tileScheduler.getTilesClaimed(), tileCount, 100f * svsFile.tileScheduler.getTilesClaimed() / tileCount));
+                        logger.log(Level.INFO, String.format("pipeline: %s", recolorPipeline.getOccupancy()));
                         Thread.sleep(10000);
                     }
                 }
                 catch(InterruptedException e) {
-                    logger.log(Level.INFO, String.format("%d of %d tiles recolored (%4.1f%% complete)", svsFile.nextTileNo, tileCount, 100f * svsFile.nextTileNo / tileCount));
+                    logger.log(Level.INFO, String.format("%d of %d tiles recolored (%4.1f%% complete)", svsFile.tileScheduler.getTilesClaimed(), tileCount, 100f * svsFile.tileScheduler.getTilesClaimed() / tileCount));
+                    logger.log(Level.INFO, String.format("pipeline: %s", recolorPipeline.getOccupancy()));
                 }
                 catch(Exception e) {
                     e.printStackTrace();
@@ -161,105 +322,96 @@ public class ColorUtil {
         });
         statusThread.start();
 
-        Thread[] recolorThreads = new Thread[threads];
-        for(int x = 0; x < threads; x++) {
-            if(
-                svsFile.tiffDirList.get(0).description.startsWith("Aperio Leica Biosystems GT450 v1.0.1")
-                || svsFile.tiffDirList.get(0).description.startsWith("Aperio Leica Biosystems GT450 DX v1.2.0")
-            ) {
-                recolorThreads[x] = new Thread(new RecolorRunnerGT450(svsFile, quality, skip, noRecolor, annotate, startWithTiffDirIndex, dummyTile, noRecode));
-            }
-            else if(svsFile.tiffDirList.get(0).description.startsWith("Aperio Image Library v12.0.15")) {
-                recolorThreads[x] = new Thread(new RecolorRunnerAT2(svsFile, quality, skip, noRecolor, annotate, startWithTiffDirIndex, dummyTile, noRecode));
-            }
-            else {
-                System.err.println("unknown scanner - using GT450 runner");
-                recolorThreads[x] = new Thread(new RecolorRunnerGT450(svsFile, quality, skip, noRecolor, annotate, startWithTiffDirIndex, dummyTile, noRecode));
-                //System.exit(1);
+        // clobber ICC in the TIFF directory by changing its tag name to garbage
+        if(!noRecolor) {
+            for(int x = startWithTiffDirIndex; x < svsFile.tiffDirList.size(); x++) {
+                TIFFDir tiffDir = svsFile.tiffDirList.get(x);
+                if(tiffDir.tagICCOffsetInSvs != -1) {
+                    svsFile.setByte(tiffDir.offsetInSvs + tiffDir.tagICCNameOffsetInHeader + 0, (byte)0xff);
+                    svsFile.setByte(tiffDir.offsetInSvs + tiffDir.tagICCNameOffsetInHeader + 1, (byte)0xff);
+                }
             }
-            recolorThreads[x].start();
-        }
-        for(int x = 0; x < threads; x++) {
-            recolorThreads[x].join();
         }
-        
-        statusThread.interrupt();
-        statusThread.join();
+
+        recolorPipeline.start();
 
         {
-// ^^ resize logic ^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^
-            List<SVSFile.ResizeSegment> resizeSegmentList = new ArrayList<>();
-// ^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^
-            for(int x = startWithTiffDirIndex; x < svsFile.tiffDirList.size(); x++) {
-                TIFFDir tiffDir = svsFile.tiffDirList.get(x);
-                if(tiffDir.tagTileOffsetsInSvs == null) {
-                    continue;
+            // the new slide is the old slide with each TIFF directory's tile
+            // contig swapped out for its recolored tiles, written as they
+            // come out of the tile collector; the offsets edited after the
+            // bytes holding them were written are written again as dirty
+            // pages
+            String svsFileNameNew = (new File(svsFile.svsFileName)).getName().replaceAll(".svs$", "_retiled.svs");
+            SVSFileWriter svsFileWriter = new SVSFileWriter(svsFile);
+            svsFileWriter.open(svsFileNameNew);
+            long indexInSVS = 0;
+            for(TIFFDir tiffDir : svsFile.tileScheduler.tiffDirList) {
+                logger.log(Level.INFO, String.format("writing TIFF directory %s image tiles", tiffDir.id));
+                svsFileWriter.copy(indexInSVS, tiffDir.tileDataContigOffsetInSVS);
+                svsFileWriter.flush();
+                long tileOffsetInSVS = svsFileWriter.position();
+                int[] recoloredTileLengths = new int[tiffDir.tileOffsets.length];
+                for(int y = 0; y < recoloredTileLengths.length; y++) {
+                    TileBuffer tileBuffer = svsFile.tileCollector.take();
+                    svsFileWriter.write(tileBuffer.bytes, 0, tileBuffer.length);
+                    recoloredTileLengths[y] = tileBuffer.length;
+                    recolorPipeline.giveTileBuffer(tileBuffer);
                 }
-                long bytesAvailable = Arrays.stream(tiffDir.tilesInSVSOrder).mapToLong(y -> y.length).sum();
-                long bytesRequired = (dummyTile ? dummyTileBytes.length : 0) + Arrays.stream(tiffDir.tilesInSVSOrder).mapToLong(y -> svsFile.recoloredTileBytesMap.get(y.id).length).sum();
+                long bytesAvailable = Arrays.stream(tiffDir.tileLengths).asLongStream().sum();
+                long bytesRequired = (dummyTile ? dummyTileBytes.length : 0) + Arrays.stream(recoloredTileLengths).asLongStream().sum();
                 if(bytesRequired > bytesAvailable && !resizeFile) {
-                    logger.log(Level.SEVERE, String.format("error writing TIFF directory %d image tiles: %d bytes are available but %d bytes are required - use resize option or reduce JPEG compression quality", x, bytesAvailable, bytesRequired));
+                    logger.log(Level.SEVERE, String.format("error writing TIFF directory %s image tiles: %d bytes are available but %d bytes are required - use resize option or reduce JPEG compression quality", tiffDir.id, bytesAvailable, bytesRequired));
+                    svsFileWriter.delete();
                     System.exit(1);
                 }
 // ^^ resize logic ^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^
                 // negative length = compress file (remove these bytes)
                 // positive length = expand file
-                if(resizeFile) {
+                // no bytes are moved here, the layout plan does that as the
+                // new slide is written, but the offsets in the TIFF
+                // directories have to be updated before the new tile offsets
+                // are written; the shifts add up across TIFF directories
+                if(resizeFile && bytesRequired != bytesAvailable) {
                     SVSFile.ResizeSegment resizeSegment = new SVSFile.ResizeSegment(0, bytesRequired - bytesAvailable);
-                    resizeSegmentList.add(resizeSegment);
                     if(bytesRequired < bytesAvailable) {
                         resizeSegment.start = tiffDir.tileDataContigOffsetInSVS + bytesRequired;
                     }
-                    else if(bytesRequired > bytesAvailable) {
+                    else {
                         resizeSegment.start = tiffDir.tileDataContigOffsetInSVS + bytesAvailable;
                     }
+                    svsFile.relocateOffsets(Arrays.asList(resizeSegment));
                 }
 // ^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^
-            }    
-// ^^ resize logic ^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^
-            // do segment expansions before writing the new image tiles...
-            if(resizeFile) { svsFile.resize(resizeSegmentList.stream().filter(x -> x.length > 0).collect(Collectors.toList())); }
-// ^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^
-            for(int x = startWithTiffDirIndex; x < svsFile.tiffDirList.size(); x++) {
-                TIFFDir tiffDir = svsFile.tiffDirList.get(x);
-                if(tiffDir.tagTileOffsetsInSvs == null) {
-                    continue;
-                }
-                logger.log(Level.INFO, String.format("writing TIFF directory %d image tiles", x));
-                long tileOffsetInSVS = tiffDir.tilesInSVSOrder[0].offsetInSVS;
-                long dummyTileOffset = tiffDir.tilesInSVSOrder[0].offsetInSVS + Arrays.stream(tiffDir.tilesInSVSOrder).mapToLong(y -> svsFile.recoloredTileBytesMap.get(y.id).length).sum();
-                for(int y = 0; y < tiffDir.tilesInSVSOrder.length; y ++) {
-                    byte[] recoloredTileBytes = svsFile.recoloredTileBytesMap.get(tiffDir.tilesInSVSOrder[y].id);
-                    if(dummyTile && recoloredTileBytes.length == 0) {
-                        svsFile.setBytesToLong(tiffDir.tagTileOffsetsInSvsOffsetInSVS[tiffDir.tilesInSVSOrder[y].indexInTiffDir], dummyTileOffset);
-                        svsFile.setBytesToLong(tiffDir.tagTileLengthsOffsetInSVS[tiffDir.tilesInSVSOrder[y].indexInTiffDir], dummyTileBytes.length);
+                long dummyTileOffset = tileOffsetInSVS + Arrays.stream(recoloredTileLengths).asLongStream().sum();
+                for(int y = 0; y < recoloredTileLengths.length; y ++) {
+                    if(dummyTile && recoloredTileLengths[y] == 0) {
+                        svsFile.setBytesToLong(tiffDir.tagTileOffsetsInSvsOffsetInSVS[tiffDir.tileIndexInTiffDir[y]], dummyTileOffset);
+                        svsFile.setBytesToLong(tiffDir.tagTileLengthsOffsetInSVS[tiffDir.tileIndexInTiffDir[y]], dummyTileBytes.length);
                     }
                     else {
-                        svsFile.setBytesToLong(tiffDir.tagTileOffsetsInSvsOffsetInSVS[tiffDir.tilesInSVSOrder[y].indexInTiffDir], tileOffsetInSVS);
-                        svsFile.setBytesToLong(tiffDir.tagTileLengthsOffsetInSVS[tiffDir.tilesInSVSOrder[y].indexInTiffDir], recoloredTileBytes.length);
-                        svsFile.setBytes(tileOffsetInSVS, tileOffsetInSVS + recoloredTileBytes.length, recoloredTileBytes);
+                        svsFile.setBytesToLong(tiffDir.tagTileOffsetsInSvsOffsetInSVS[tiffDir.tileIndexInTiffDir[y]], tileOffsetInSVS);
+                        svsFile.setBytesToLong(tiffDir.tagTileLengthsOffsetInSVS[tiffDir.tileIndexInTiffDir[y]], recoloredTileLengths[y]);
                     }
-                    tileOffsetInSVS += recoloredTileBytes.length;
+                    tileOffsetInSVS += recoloredTileLengths[y];
                 }
                 // add dummy tile to end of this TIFF directory's tile contig
-                if(dummyTile) { svsFile.setBytes(tileOffsetInSVS, tileOffsetInSVS + dummyTileBytes.length, dummyTileBytes); }
-            }
+                if(dummyTile) { svsFileWriter.write(dummyTileBytes, 0, dummyTileBytes.length); }
 // ^^ resize logic ^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^
-            // ...and do segment compressions after writing the new image tiles
-            if(resizeFile) { svsFile.resize(resizeSegmentList.stream().filter(x -> x.length < 0).collect(Collectors.toList())); }
+                // when resizing, the old tile contig is dropped in its
+                // entirety, otherwise whatever is left of it is kept
+                indexInSVS = tiffDir.tileDataContigOffsetInSVS + (resizeFile ? bytesAvailable : bytesRequired);
 // ^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^
-            // clobber ICC in the TIFF directory by changing its tag name to garbage
-            if(!noRecolor) {
-                for(int x = startWithTiffDirIndex; x < svsFile.tiffDirList.size(); x++) {
-                    TIFFDir tiffDir = svsFile.tiffDirList.get(x);
-                    if(tiffDir.tagICCOffsetInSvs != -1) {
-                        svsFile.setByte(tiffDir.offsetInSvs + tiffDir.tagICCNameOffsetInHeader + 0, (byte)0xff);
-                        svsFile.setByte(tiffDir.offsetInSvs + tiffDir.tagICCNameOffsetInHeader + 1, (byte)0xff);
-                    }
-                }
+                svsFileWriter.rewriteDirtyPages();
             }
-            svsFile.write((new File(svsFile.svsFileName)).getName().replaceAll(".svs$", "_retiled.svs"));
-            logger.log(Level.INFO, String.format("recolored slide written to %s in current directory", (new File(svsFile.svsFileName)).getName().replaceAll(".svs$", "_retiled.svs")));
+            svsFileWriter.copy(indexInSVS, svsFile.length);
+            svsFileWriter.close();
+
+            recolorPipeline.join();
+            statusThread.interrupt();
+            statusThread.join();
+            svsFile.releaseLut();
+
+            logger.log(Level.INFO, String.format("recolored slide written to %s in current directory", svsFileNameNew));
         }
         
         System.exit(0);
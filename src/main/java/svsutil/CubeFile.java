@@ -0,0 +1,275 @@
+/**
+ * MIT License
+ *
+ * Copyright (c) 2022 Geoffrey H. Smith
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package svsutil;
+
+import java.io.BufferedOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A 3D LUT in the ".cube" format (Adobe/Resolve) that other color tools read
+ * and write: a few keyword lines (TITLE, LUT_3D_SIZE, DOMAIN_MIN/MAX)
+ * followed by size^3 lines of "r g b" values from 0 to 1 with the R
+ * component changing fastest. A 256^3 file maps 1:1 onto the CLUT, so it is
+ * parsed straight into the CLUT; any other grid is held as 16-bit values
+ * (clamped to 0 - 1, value * 0xffff, exact for the 8-bit levels that
+ * SVSFile.exportLut() writes) in the layout that SVSFile.interpolateLut()
+ * takes, indexed by (r * size + g) * size + b.
+ * 
+ * @author geoffrey.smith@emory.edu
+ */
+public class CubeFile {
+
+    static final Logger logger = Logger.getLogger(CubeFile.class.getName());
+
+    static final double[] POWERS_OF_TEN = { 1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11, 1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18 };
+
+    public String title = null;
+    public int size = -1;
+    public char[] grid = null; // null for a 256^3 file, which is read into the CLUT
+
+    // the grid value at an index, 0 - 1
+    public float get(int index) {
+        return grid[index] / (float)0xffff;
+    }
+
+    // parses a .cube file; the file is mapped and the value lines, which are
+    // nearly all of a large LUT, are parsed straight from the bytes; the
+    // values of a 256^3 file are adjusted, rounded and packed into lut
+    public static CubeFile read(String cubeFileName, int[] lut, List<LutAdjustment> lutAdjustmentList) throws IOException {
+        CubeFile cubeFile = new CubeFile();
+        try(FileChannel fileChannel = FileChannel.open(Paths.get(cubeFileName), StandardOpenOption.READ)) {
+            ByteBuffer bb = fileChannel.map(FileChannel.MapMode.READ_ONLY, 0, fileChannel.size());
+            int entryCount = 0;
+            int lineNo = 0;
+            float[] rgb = new float[3];
+            while(bb.hasRemaining()) {
+                lineNo++;
+                skipSpaces(bb);
+                if(!bb.hasRemaining()) {
+                    break;
+                }
+                byte c = bb.get(bb.position());
+                if(c == '\n' || c == '\r' || c == '#') {
+                    skipLine(bb);
+                }
+                else if((c >= 'A' && c <= 'Z') || (c >= 'a' && c <= 'z')) {
+                    String[] keywordLine = readLine(bb).trim().split("\\s+", 2);
+                    String value = keywordLine.length > 1 ? keywordLine[1].trim() : "";
+                    switch(keywordLine[0]) {
+                        case "TITLE": {
+                            cubeFile.title = value.replaceAll("^\"|\"$", "");
+                            break;
+                        }
+                        case "LUT_3D_SIZE": {
+                            cubeFile.size = Integer.parseInt(value);
+                            if(cubeFile.size < 2 || cubeFile.size > 0x100) {
+                                throw new IOException(String.format("%s line %d: LUT_3D_SIZE must be 2 - 256", cubeFileName, lineNo));
+                            }
+                            if(cubeFile.size < 0x100) {
+                                cubeFile.grid = new char[cubeFile.size * cubeFile.size * cubeFile.size * 3];
+                            }
+                            break;
+                        }
+                        case "DOMAIN_MIN":
+                        case "DOMAIN_MAX": {
+                            float domain = "DOMAIN_MIN".equals(keywordLine[0]) ? 0f : 1f;
+                            for(String domainValue : value.split("\\s+")) {
+                                if(Float.parseFloat(domainValue) != domain) {
+                                    throw new IOException(String.format("%s line %d: only a 0 - 1 domain is supported", cubeFileName, lineNo));
+                                }
+                            }
+                            break;
+                        }
+                        case "LUT_3D_INPUT_RANGE": {
+                            String[] rangeValues = value.split("\\s+");
+                            if(rangeValues.length != 2 || Float.parseFloat(rangeValues[0]) != 0f || Float.parseFloat(rangeValues[1]) != 1f) {
+                                throw new IOException(String.format("%s line %d: only a 0 - 1 input range is supported", cubeFileName, lineNo));
+                            }
+                            break;
+                        }
+                        case "LUT_1D_SIZE": {
+                            throw new IOException(String.format("%s line %d: 1D LUTs are not supported", cubeFileName, lineNo));
+                        }
+                        default: {
+                            logger.log(Level.WARNING, String.format("%s line %d: ignoring keyword %s", cubeFileName, lineNo, keywordLine[0]));
+                        }
+                    }
+                }
+                else {
+                    if(cubeFile.size < 0) {
+                        throw new IOException(String.format("%s line %d: values before LUT_3D_SIZE", cubeFileName, lineNo));
+                    }
+                    if(entryCount == cubeFile.size * cubeFile.size * cubeFile.size) {
+                        throw new IOException(String.format("%s line %d: more than %d values", cubeFileName, lineNo, entryCount));
+                    }
+                    int r = entryCount % cubeFile.size;
+                    int g = (entryCount / cubeFile.size) % cubeFile.size;
+                    int b = entryCount / (cubeFile.size * cubeFile.size);
+                    for(int component = 0; component < 3; component++) {
+                        skipSpaces(bb);
+                        rgb[component] = readFloat(bb, cubeFileName, lineNo);
+                    }
+                    skipLine(bb);
+                    if(cubeFile.grid == null) {
+                        // as SVSFile.interpolateLut() would, with the
+                        // rounding that lets an exported table read back
+                        // exactly
+                        for(LutAdjustment lutAdjustment : lutAdjustmentList) {
+                            lutAdjustment.apply(rgb);
+                        }
+                        int rgbPacked = 0;
+                        for(int component = 0; component < 3; component++) {
+                            rgbPacked = (rgbPacked << 8) | ((int)(Math.min(1f, Math.max(0f, rgb[component])) * 0xff + 0.5f) & 0x0000ff);
+                        }
+                        lut[(r << 16) | (g << 8) | b] = rgbPacked;
+                    }
+                    else {
+                        int offset = ((r * cubeFile.size + g) * cubeFile.size + b) * 3;
+                        for(int component = 0; component < 3; component++) {
+                            cubeFile.grid[offset + component] = (char)(Math.min(1f, Math.max(0f, rgb[component])) * 0xffff + 0.5f);
+                        }
+                    }
+                    entryCount++;
+                }
+            }
+            if(cubeFile.size < 0 || entryCount != cubeFile.size * cubeFile.size * cubeFile.size) {
+                throw new IOException(String.format("%s: expected LUT_3D_SIZE and size^3 values, found %d values", cubeFileName, entryCount));
+            }
+        }
+        return cubeFile;
+    }
+
+    // writes a 256x256x256 CLUT as a .cube file with one line per entry
+    public static void write(String cubeFileName, String title, int[] lut) throws IOException {
+        // the text of each 8-bit level, so writing 16.7M lines is just copying
+        byte[][] levelText = new byte[0x100][];
+        for(int v = 0; v < 0x100; v++) {
+            levelText[v] = String.format("%.6f", 1.0 * v / 0xff).getBytes(StandardCharsets.US_ASCII);
+        }
+        try(OutputStream os = new BufferedOutputStream(new FileOutputStream(cubeFileName), SVSFile.PAGE_SIZE)) {
+            os.write(String.format("TITLE \"%s\"\nLUT_3D_SIZE %d\nDOMAIN_MIN 0.0 0.0 0.0\nDOMAIN_MAX 1.0 1.0 1.0\n", title, 0x100).getBytes(StandardCharsets.US_ASCII));
+            for(int b = 0; b < 0x100; b++) {
+                for(int g = 0; g < 0x100; g++) {
+                    for(int r = 0; r < 0x100; r++) {
+                        int rgb = lut[(r << 16) | (g << 8) | b];
+                        os.write(levelText[(rgb >> 16) & 0x0000ff]);
+                        os.write(' ');
+                        os.write(levelText[(rgb >> 8) & 0x0000ff]);
+                        os.write(' ');
+                        os.write(levelText[rgb & 0x0000ff]);
+                        os.write('\n');
+                    }
+                }
+            }
+        }
+    }
+
+    static void skipSpaces(ByteBuffer bb) {
+        while(bb.hasRemaining() && (bb.get(bb.position()) == ' ' || bb.get(bb.position()) == '\t')) {
+            bb.get();
+        }
+    }
+
+    static void skipLine(ByteBuffer bb) {
+        while(bb.hasRemaining() && bb.get() != '\n') {
+        }
+    }
+
+    static String readLine(ByteBuffer bb) {
+        StringBuilder line = new StringBuilder();
+        while(bb.hasRemaining()) {
+            byte c = bb.get();
+            if(c == '\n') {
+                break;
+            }
+            line.append((char)c);
+        }
+        return line.toString();
+    }
+
+    // a plain decimal (e.g., "0.123456") is parsed in place; anything else
+    // (e.g., an exponent) is handed to Float.parseFloat()
+    static float readFloat(ByteBuffer bb, String cubeFileName, int lineNo) throws IOException {
+        int start = bb.position();
+        boolean negative = false;
+        long mantissa = 0;
+        int fractionDigits = -1;
+        int digits = 0;
+        boolean plain = true;
+        while(bb.hasRemaining()) {
+            byte c = bb.get(bb.position());
+            if(c >= '0' && c <= '9') {
+                if(digits == POWERS_OF_TEN.length - 1) {
+                    plain = false;
+                }
+                else {
+                    mantissa = mantissa * 10 + (c - '0');
+                    digits++;
+                    if(fractionDigits >= 0) {
+                        fractionDigits++;
+                    }
+                }
+            }
+            else if(c == '.' && fractionDigits < 0) {
+                fractionDigits = 0;
+            }
+            else if(c == '-' && bb.position() == start) {
+                negative = true;
+            }
+            else if(c == ' ' || c == '\t' || c == '\r' || c == '\n') {
+                break;
+            }
+            else {
+                plain = false;
+            }
+            bb.get();
+        }
+        if(!plain || digits == 0) {
+            byte[] token = new byte[bb.position() - start];
+            for(int x = 0; x < token.length; x++) {
+                token[x] = bb.get(start + x);
+            }
+            try {
+                return Float.parseFloat(new String(token, StandardCharsets.US_ASCII));
+            }
+            catch(NumberFormatException e) {
+                throw new IOException(String.format("%s line %d: bad value '%s'", cubeFileName, lineNo, new String(token, StandardCharsets.US_ASCII)));
+            }
+        }
+        double value = mantissa / POWERS_OF_TEN[Math.max(0, fractionDigits)];
+        return (float)(negative ? -value : value);
+    }
+
+}
@@ -42,7 +42,6 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import java.util.stream.Collectors;
 import javax.imageio.IIOImage;
 import javax.imageio.ImageIO;
 import javax.imageio.ImageReader;
@@ -81,6 +80,7 @@ public class LabelUtil {
         boolean resizeFile = false;
         boolean clobberMacro = false;
         boolean barCode = false;
+        String cacheDirName = null;
                 
         Options options = new Options();
 
@@ -112,6 +112,10 @@ public class LabelUtil {
         optionBarCode.setRequired(false);
         options.addOption(optionBarCode);
 
+        Option optionCache = new Option("k", "cache", true, String.format("cache directory for TIFF directory indexes; reopening a slide with an index in this directory skips parsing its TIFF directories (default = no cache)"));
+        optionCache.setRequired(false);
+        options.addOption(optionCache);
+
         CommandLineParser parser = new DefaultParser();
         HelpFormatter formatter = new HelpFormatter();
         CommandLine cmd = null; //not a good practice, it serves it purpose 
@@ -125,6 +129,7 @@ public class LabelUtil {
             if(cmd.hasOption(optionResize)) { resizeFile = true; }
             if(cmd.hasOption(optionClobberMacro)) { clobberMacro = true; }
             if(cmd.hasOption(optionBarCode)) { barCode = true; }
+            if(cmd.hasOption(optionCache)) { cacheDirName = cmd.getOptionValue(optionCache); }
             if(cmd.getArgs().length != 1) { throw new ParseException("no file specified"); }
             if(!cmd.getArgs()[0].toLowerCase().endsWith(".svs")) { throw new ParseException("file name must have a 'svs' extension"); }
         }
@@ -134,7 +139,9 @@ public class LabelUtil {
             System.exit(1);
         }
         
-        final SVSFile svsFile = new SVSFile(cmd.getArgs()[0]);
+        // extracting the label only needs the TIFF directories and the label
+        // strips, so don't map the whole slide for that
+        final SVSFile svsFile = annotation == null && replacement == null && !clobberMacro ? SVSFile.openHeadersOnly(cmd.getArgs()[0], cacheDirName) : new SVSFile(cmd.getArgs()[0], cacheDirName);
 
         if(extract) {
 
@@ -286,7 +293,7 @@ public class LabelUtil {
                             resizeSegment.start = tiffDir.stripOffsetsInSVS[0] + bytesAvailable;
                         }
                     }
-                    if(resizeFile) { svsFile.resize(resizeSegmentList.stream().filter(x -> x.length > 0).collect(Collectors.toList())); }
+                    if(resizeFile) { svsFile.resize(resizeSegmentList); }
                     tiffDir = svsFile.tiffDirList.get(Integer.valueOf(tiffDir.id)); // SVS reparsed
 // ^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^
                     long offsetInSVS = tiffDir.stripOffsetsInSVS[0];
@@ -296,10 +303,7 @@ public class LabelUtil {
                         svsFile.setBytes(offsetInSVS, offsetInSVS + stripByteList.get(stripIndex).length, stripByteList.get(stripIndex));
                         offsetInSVS += stripByteList.get(stripIndex).length;
                     }
-// ^^ resize logic ^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^
-                    if(resizeFile) { svsFile.resize(resizeSegmentList.stream().filter(x -> x.length < 0).collect(Collectors.toList())); }
-                    tiffDir = svsFile.tiffDirList.get(Integer.valueOf(tiffDir.id)); // SVS reparsed
-// ^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^
+                    svsFile.reparseTIFFDirTags(); // strips rewritten, so a later resize (e.g., clobbering the macro) relocates from the new offsets
                     svsFile.write((new File(svsFile.svsFileName)).getName().replaceAll(".svs$", "_label_annotated.svs"));
                     logger.log(Level.INFO, String.format("slide with annotated label written to %s in current directory", (new File(svsFile.svsFileName)).getName().replaceAll(".svs$", "_label_annotated.svs")));
 
@@ -400,7 +404,7 @@ public class LabelUtil {
                             svsFile.setByte(tiffDir.stripOffsetsInSVS[0] + bytesRequired + zz, (byte)0x00);
                         }
                     }
-                    if(resizeFile) { svsFile.resize(resizeSegmentList.stream().filter(x -> x.length > 0).collect(Collectors.toList())); }
+                    if(resizeFile) { svsFile.resize(resizeSegmentList); }
                     tiffDir = svsFile.tiffDirList.get(Integer.valueOf(tiffDir.id)); // SVS reparsed
 // ^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^
                     long offsetInSVS = tiffDir.stripOffsetsInSVS[0];
@@ -410,10 +414,7 @@ public class LabelUtil {
                         svsFile.setBytes(offsetInSVS, offsetInSVS + stripByteList.get(stripIndex).length, stripByteList.get(stripIndex));
                         offsetInSVS += stripByteList.get(stripIndex).length;
                     }
-// ^^ resize logic ^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^
-                    if(resizeFile) { svsFile.resize(resizeSegmentList.stream().filter(x -> x.length < 0).collect(Collectors.toList())); }
-                    tiffDir = svsFile.tiffDirList.get(Integer.valueOf(tiffDir.id)); // SVS reparsed
-// ^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^
+                    svsFile.reparseTIFFDirTags(); // strips rewritten, so a later resize (e.g., clobbering the macro) relocates from the new offsets
                     //svsFile.write((new File(svsFile.svsFileName)).getName().replaceAll(".svs$", "_" + replacement + ".svs"));
                     //logger.log(Level.INFO, String.format("slide with replaced label written to %s in current directory", (new File(svsFile.svsFileName)).getName().replaceAll(".svs$", "_" + replacement + ".svs")));
                     if(!clobberMacro) {
@@ -495,17 +496,13 @@ public class LabelUtil {
                     svsFile.setByte(tiffDir.stripOffsetsInSVS[0] + bytesRequired + zz, (byte)0x00);
                 }
             }
-            if(resizeFile) { svsFile.resize(resizeSegmentList.stream().filter(x -> x.length > 0).collect(Collectors.toList())); }
+            if(resizeFile) { svsFile.resize(resizeSegmentList); }
             tiffDir = svsFile.tiffDirList.get(Integer.valueOf(tiffDir.id)); // SVS reparsed
 // ^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^
             long offsetInSVS = tiffDir.stripOffsetsInSVS[0];
             //svsFile.setBytesToLong(tiffDir.stripOffsetsInSVSOffsetInSVS[0], offsetInSVS);
             svsFile.setBytesToLong(tiffDir.stripLengthsOffsetInSVS[0], imageBytesClobbered.length);
             svsFile.setBytes(offsetInSVS, offsetInSVS + imageBytesClobbered.length, imageBytesClobbered);
-// ^^ resize logic ^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^
-            if(resizeFile) { svsFile.resize(resizeSegmentList.stream().filter(x -> x.length < 0).collect(Collectors.toList())); }
-            tiffDir = svsFile.tiffDirList.get(Integer.valueOf(tiffDir.id)); // SVS reparsed
-// ^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^
             svsFile.write((new File(svsFile.svsFileName)).getName().replaceAll(".svs$", "_relabeled.svs"));
             logger.log(Level.INFO, String.format("slide with replaced label written to %s in current directory", (new File(svsFile.svsFileName)).getName().replaceAll(".svs$", "_relabeled.svs")));
             
@@ -0,0 +1,121 @@
+/**
+ * MIT License
+ *
+ * Copyright (c) 2022 Geoffrey H. Smith
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package svsutil;
+
+/**
+ * An adjustment that is folded into the CLUT after the ICC correction (see
+ * SVSFile.lutAdjustmentList), so a chain of any number of adjustments still
+ * costs a single table lookup per pixel. Each adjustment maps an sRGB color
+ * with components 0 - 1 in place. The string form of an adjustment has its
+ * exact parameters, because it is part of the key of the CLUT it is folded
+ * into (see LutCache.getKey).
+ * 
+ * @author geoffrey.smith@emory.edu
+ */
+public abstract class LutAdjustment {
+
+    public abstract void apply(float[] rgb);
+
+    // v' = v^(1/gamma) per component, so a gamma > 1 brightens mid-tones
+    public static LutAdjustment gamma(float gamma) {
+        return new LutAdjustment() {
+            @Override
+            public void apply(float[] rgb) {
+                for(int component = 0; component < 3; component++) {
+                    rgb[component] = (float)Math.pow(rgb[component], 1.0 / gamma);
+                }
+            }
+            @Override
+            public String toString() {
+                return String.format("gamma %s", gamma);
+            }
+        };
+    }
+
+    // multiplies each component in linear light
+    public static LutAdjustment gain(float[] gain) {
+        return new LutAdjustment() {
+            @Override
+            public void apply(float[] rgb) {
+                for(int component = 0; component < 3; component++) {
+                    rgb[component] = toSRGB(toLinear(rgb[component]) * gain[component]);
+                }
+            }
+            @Override
+            public String toString() {
+                return String.format("gain %s,%s,%s", gain[0], gain[1], gain[2]);
+            }
+        };
+    }
+
+    // scales each component in linear light so that the given color (e.g.,
+    // the slide background, 8-bit levels) becomes white
+    public static LutAdjustment whitePoint(int[] whitePoint) {
+        final float[] scale = new float[3];
+        for(int component = 0; component < 3; component++) {
+            scale[component] = 1f / toLinear(whitePoint[component] / 255f);
+        }
+        return new LutAdjustment() {
+            @Override
+            public void apply(float[] rgb) {
+                for(int component = 0; component < 3; component++) {
+                    rgb[component] = toSRGB(toLinear(rgb[component]) * scale[component]);
+                }
+            }
+            @Override
+            public String toString() {
+                return String.format("white point %d,%d,%d", whitePoint[0], whitePoint[1], whitePoint[2]);
+            }
+        };
+    }
+
+    // moves each component away from (> 1) or toward (< 1) the Rec. 709 luma
+    // of the color; 0 = grayscale
+    public static LutAdjustment saturation(float saturation) {
+        return new LutAdjustment() {
+            @Override
+            public void apply(float[] rgb) {
+                float luma = 0.2126f * rgb[0] + 0.7152f * rgb[1] + 0.0722f * rgb[2];
+                for(int component = 0; component < 3; component++) {
+                    rgb[component] = luma + saturation * (rgb[component] - luma);
+                }
+            }
+            @Override
+            public String toString() {
+                return String.format("saturation %s", saturation);
+            }
+        };
+    }
+
+    static float toLinear(float v) {
+        return v <= 0.04045f ? v / 12.92f : (float)Math.pow((v + 0.055f) / 1.055f, 2.4);
+    }
+
+    static float toSRGB(float v) {
+        v = Math.min(1f, Math.max(0f, v));
+        return v <= 0.0031308f ? v * 12.92f : 1.055f * (float)Math.pow(v, 1 / 2.4) - 0.055f;
+    }
+
+}
@@ -0,0 +1,123 @@
+/**
+ * MIT License
+ *
+ * Copyright (c) 2022 Geoffrey H. Smith
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package svsutil;
+
+import java.util.Random;
+import java.util.stream.IntStream;
+
+/**
+ * Times the CLUT kernels on synthetic tiles with a range of distinct color
+ * counts, from a background tile (a handful of colors) to noise (every pixel
+ * a different color), to show where the memo kernel beats the direct one
+ * and how the cache-resident grid compares. The tiles are laid out the way
+ * the JPEG reader decodes them (TYPE_3BYTE_BGR) and go through
+ * LutKernel.applyInterleaved, as in the recolor pipeline. The "parallel"
+ * column is a baseline rather than an engine: the direct kernel with one
+ * tile's pixels split across the common fork-join pool, the way the
+ * lookups were parallelized before the recolor pipeline ran one tile per
+ * worker.
+ * 
+ * @author geoffrey.smith@emory.edu
+ */
+public class LutBenchmark {
+
+    static final int PIXEL_STRIDE = 3;
+    static final int[] BAND_OFFSETS = { 2, 1, 0 }; // TYPE_3BYTE_BGR
+
+    public static void main(String[] args) {
+
+        int tileSize = args.length > 0 ? Integer.parseInt(args[0]) : 256;
+        int tileCount = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+
+        Random random = new Random(1);
+        int[] lut = new int[0x100 * 0x100 * 0x100];
+        for(int x = 0; x < lut.length; x++) {
+            lut[x] = random.nextInt() & 0x00ffffff;
+        }
+
+        System.out.println(String.format("%dx%d tiles, %d tiles per run, ms per Mpixel (best of 5 runs)", tileSize, tileSize, tileCount));
+        LutGrid lutGrid = new LutGrid(lut);
+
+        System.out.println(String.format("%10s %10s %10s %10s %10s %10s %10s", "distinct", "direct", "parallel", "memo", "auto", "grid", LutSimd.isAvailable() ? "simd" : "simd (n/a)"));
+        for(int distinctColors : new int[] { 4, 64, 1024, 4096, 16384, tileSize * tileSize }) {
+            // the palette is spread over the whole color cube, so that the
+            // lookups touch as much of the table as a real slide's would
+            int[] palette = new int[distinctColors];
+            for(int x = 0; x < distinctColors; x++) {
+                palette[x] = random.nextInt() & 0x00ffffff;
+            }
+            byte[][] tiles = new byte[tileCount][tileSize * tileSize * PIXEL_STRIDE];
+            for(byte[] tile : tiles) {
+                for(int x = 0; x < tileSize * tileSize; x++) {
+                    int color = palette[x < distinctColors ? x : random.nextInt(distinctColors)];
+                    tile[x * PIXEL_STRIDE + BAND_OFFSETS[0]] = (byte)(color >> 16);
+                    tile[x * PIXEL_STRIDE + BAND_OFFSETS[1]] = (byte)(color >> 8);
+                    tile[x * PIXEL_STRIDE + BAND_OFFSETS[2]] = (byte)color;
+                }
+            }
+            System.out.println(String.format(
+                "%10d %10.2f %10.2f %10.2f %10.2f %10.2f %10.2f",
+                distinctColors,
+                time(tiles, (data, pixelCount) -> LutKernel.applyInterleaved(LutKernel.ENGINE_DIRECT, lut, lutGrid, data, 0, pixelCount, PIXEL_STRIDE, BAND_OFFSETS)),
+                time(tiles, (data, pixelCount) -> parallel(lut, data, pixelCount)),
+                time(tiles, (data, pixelCount) -> LutKernel.applyInterleaved(LutKernel.ENGINE_MEMO, lut, lutGrid, data, 0, pixelCount, PIXEL_STRIDE, BAND_OFFSETS)),
+                time(tiles, (data, pixelCount) -> LutKernel.applyInterleaved(LutKernel.ENGINE_AUTO, lut, lutGrid, data, 0, pixelCount, PIXEL_STRIDE, BAND_OFFSETS)),
+                time(tiles, (data, pixelCount) -> LutKernel.applyInterleaved(LutKernel.ENGINE_GRID, lut, lutGrid, data, 0, pixelCount, PIXEL_STRIDE, BAND_OFFSETS)),
+                time(tiles, (data, pixelCount) -> LutKernel.applyInterleaved(LutKernel.ENGINE_SIMD, lut, lutGrid, data, 0, pixelCount, PIXEL_STRIDE, BAND_OFFSETS))
+            ));
+        }
+
+    }
+
+    interface TileKernel {
+        void apply(byte[] data, int pixelCount);
+    }
+
+    // the direct kernel on PARALLEL_SLICES slices of the tile's pixels at once
+    static final int PARALLEL_SLICES = 4 * Runtime.getRuntime().availableProcessors();
+    static void parallel(int[] lut, byte[] data, int pixelCount) {
+        IntStream.range(0, PARALLEL_SLICES).parallel().forEach(slice -> {
+            int start = (int)((long)pixelCount * slice / PARALLEL_SLICES);
+            int end = (int)((long)pixelCount * (slice + 1) / PARALLEL_SLICES);
+            LutKernel.direct(lut, data, start * PIXEL_STRIDE, end - start, PIXEL_STRIDE, BAND_OFFSETS);
+        });
+    }
+
+    static double time(byte[][] tiles, TileKernel tileKernel) {
+        byte[] data = new byte[tiles[0].length];
+        int pixelCount = data.length / PIXEL_STRIDE;
+        long best = Long.MAX_VALUE;
+        for(int run = 0; run < 5; run++) {
+            long start = System.nanoTime();
+            for(byte[] tile : tiles) {
+                System.arraycopy(tile, 0, data, 0, data.length);
+                tileKernel.apply(data, pixelCount);
+            }
+            best = Math.min(best, System.nanoTime() - start);
+        }
+        return best / 1e6 / (1.0 * tiles.length * pixelCount / 1e6);
+    }
+
+}
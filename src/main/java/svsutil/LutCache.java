@@ -0,0 +1,144 @@
+/**
+ * MIT License
+ *
+ * Copyright (c) 2022 Geoffrey H. Smith
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package svsutil;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A CLUT cache file holds a computed 256x256x256 color lookup table in a
+ * cache directory. The file is named for a SHA-256 hash of the ICC profile
+ * the table was computed from, and every slide from a given scanner carries
+ * the same profile, so a batch of slides pays for computing the table once
+ * and every later run reads the file instead. The kernels look pixels up in
+ * an int[], so the file is mapped and its 64 Mb bulk-copied into the heap
+ * table; what the cache saves is computing the table, not its memory. A
+ * stale or unreadable cache file is simply ignored and rewritten.
+ * 
+ * @author geoffrey.smith@emory.edu
+ */
+public class LutCache {
+
+    static final Logger logger = Logger.getLogger(LutCache.class.getName());
+
+    static final long MAGIC = 0x5356535554434c54L; // "SVSUTCLT"
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 8 + 4 + 4;
+
+    public static File getLutFile(SVSFile svsFile, String cacheDirName) {
+        return new File(cacheDirName, getKey(svsFile) + ".lut");
+    }
+
+    // the hash of the ICC profile; the JVM version is hashed in too because
+    // the table is computed by the color management system of the JVM, and
+    // so are the grid size of a table interpolated from a grid and the
+    // adjustments folded into the table
+    public static String getKey(SVSFile svsFile) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-256");
+            md.update(svsFile.iccBytes);
+            md.update(System.getProperty("java.version").getBytes(StandardCharsets.US_ASCII));
+            if(svsFile.lutGridSize > 0) {
+                md.update(String.format("grid=%d", svsFile.lutGridSize).getBytes(StandardCharsets.US_ASCII));
+            }
+            if(!svsFile.lutAdjustmentList.isEmpty()) {
+                md.update(String.format("adjustments=%s", svsFile.lutAdjustmentList).getBytes(StandardCharsets.US_ASCII));
+            }
+            StringBuilder key = new StringBuilder();
+            for(byte b : md.digest()) {
+                key.append(String.format("%02x", b));
+            }
+            return key.toString();
+        }
+        catch(NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e); // every JVM has SHA-256
+        }
+    }
+
+    // copies the CLUT for the SVS file's ICC profile into lutUpsampledInt,
+    // returns false if there is no valid cache file for the profile
+    public static boolean read(SVSFile svsFile, String cacheDirName) {
+        File lutFile = getLutFile(svsFile, cacheDirName);
+        if(!lutFile.exists()) {
+            return false;
+        }
+        try(FileChannel fileChannel = FileChannel.open(lutFile.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer bb = fileChannel.map(FileChannel.MapMode.READ_ONLY, 0, fileChannel.size());
+            if(
+                   bb.getLong() != MAGIC
+                || bb.getInt() != VERSION
+                || bb.getInt() != svsFile.lutUpsampledInt.length
+                || bb.remaining() != svsFile.lutUpsampledInt.length * 4
+            ) {
+                logger.log(Level.INFO, String.format("CLUT cache file %s is stale", lutFile.getPath()));
+                return false;
+            }
+            bb.asIntBuffer().get(svsFile.lutUpsampledInt);
+            logger.log(Level.INFO, String.format("read color lookup table (CLUT) from cache file %s", lutFile.getPath()));
+            return true;
+        }
+        catch(IOException | RuntimeException e) {
+            logger.log(Level.WARNING, String.format("error reading CLUT cache file %s: %s", lutFile.getPath(), e));
+            return false;
+        }
+    }
+
+    // writes the SVS file's computed CLUT; the cache file is only a cache, so
+    // failing to write it is not an error
+    public static void write(SVSFile svsFile, String cacheDirName) {
+        File lutFile = getLutFile(svsFile, cacheDirName);
+        try {
+            lutFile.getParentFile().mkdirs();
+            File lutFileTemp = File.createTempFile(lutFile.getName(), ".tmp", lutFile.getParentFile());
+            // written through a mapping of the file, so the table is not
+            // copied into a second 64 Mb heap buffer
+            try(FileChannel fileChannel = FileChannel.open(lutFileTemp.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                MappedByteBuffer bb = fileChannel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + svsFile.lutUpsampledInt.length * 4L);
+                bb.putLong(MAGIC);
+                bb.putInt(VERSION);
+                bb.putInt(svsFile.lutUpsampledInt.length);
+                bb.asIntBuffer().put(svsFile.lutUpsampledInt);
+                bb.force();
+            }
+            Files.move(lutFileTemp.toPath(), lutFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            logger.log(Level.INFO, String.format("wrote color lookup table (CLUT) to cache file %s", lutFile.getPath()));
+        }
+        catch(IOException e) {
+            logger.log(Level.WARNING, String.format("error writing CLUT cache file %s: %s", lutFile.getPath(), e));
+        }
+    }
+
+}
@@ -0,0 +1,163 @@
+/**
+ * MIT License
+ *
+ * Copyright (c) 2022 Geoffrey H. Smith
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package svsutil;
+
+import java.util.Arrays;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A reduced-precision copy of the CLUT that fits in a CPU's L2 cache: the
+ * full table sampled at 33 nodes per component (every 8th level, plus 255),
+ * 33^3 longs or about 280 Kb, with each pixel interpolated tetrahedrally
+ * between the 4 nodes around it in fixed point. Each node holds its R, G and
+ * B in 20-bit lanes of a long, and the 4 weights of a tetrahedron are never
+ * negative and sum to 256, so one multiply-add per node interpolates all 3
+ * components at once without a lane ever overflowing into the next. Every pixel
+ * then costs a little arithmetic instead of a random read from a 64 Mb
+ * table, which trades memory bandwidth (the limit with many cores) for
+ * computation. The error against the full table is reported as CIE76 delta E
+ * when the grid is built.
+ * 
+ * @author geoffrey.smith@emory.edu
+ */
+public class LutGrid {
+
+    static final Logger logger = Logger.getLogger(LutGrid.class.getName());
+
+    public static final int NODES = 33;
+
+    static final long LANE_MASK = 0x00000000000fffffL;
+    static final long LANE_ROUNDING = (0x80L << 40) | (0x80L << 20) | 0x80L;
+
+    public long[] nodes = new long[NODES * NODES * NODES];
+
+    // per 8-bit level: the offset of the level's cell along each axis of the
+    // node array and the level's position within the cell, 0 - 256
+    int[] cellOffsetR = new int[0x100];
+    int[] cellOffsetG = new int[0x100];
+    int[] cellOffsetB = new int[0x100];
+    int[] cellWeight = new int[0x100];
+
+    // offsets from a cell's 000 node of its other nodes, indexed by
+    // (r << 2) | (g << 1) | b
+    int[] corner = new int[8];
+
+    // offsets from a cell's 000 node of the second and third nodes of the
+    // tetrahedron containing a color, indexed by the order of the color's
+    // fractions: (r > g) << 2 | (g > b) << 1 | (r > b) (1 and 6 can't happen)
+    int[] corner1 = new int[8];
+    int[] corner2 = new int[8];
+
+    public LutGrid(int[] lut) {
+        int[] nodeLevel = new int[NODES];
+        for(int x = 0; x < NODES; x++) {
+            nodeLevel[x] = Math.min(0xff, x * 8);
+        }
+        for(int r = 0; r < NODES; r++) {
+            for(int g = 0; g < NODES; g++) {
+                for(int b = 0; b < NODES; b++) {
+                    int rgb = lut[(nodeLevel[r] << 16) | (nodeLevel[g] << 8) | nodeLevel[b]];
+                    nodes[(r * NODES + g) * NODES + b] = ((long)((rgb >> 16) & 0x0000ff) << 40) | ((long)((rgb >> 8) & 0x0000ff) << 20) | (rgb & 0x0000ff);
+                }
+            }
+        }
+        for(int v = 0; v < 0x100; v++) {
+            int cell = Math.min(v / 8, NODES - 2);
+            cellOffsetR[v] = cell * NODES * NODES;
+            cellOffsetG[v] = cell * NODES;
+            cellOffsetB[v] = cell;
+            cellWeight[v] = ((v - nodeLevel[cell]) * 0x100 + (nodeLevel[cell + 1] - nodeLevel[cell]) / 2) / (nodeLevel[cell + 1] - nodeLevel[cell]);
+        }
+        for(int c = 0; c < 8; c++) {
+            corner[c] = (((c >> 2) & 1) * NODES + ((c >> 1) & 1)) * NODES + (c & 1);
+        }
+        int[][] tetrahedra = { { 1, 3 }, { 0, 0 }, { 2, 3 }, { 2, 6 }, { 1, 5 }, { 4, 5 }, { 0, 0 }, { 4, 6 } };
+        for(int order = 0; order < 8; order++) {
+            corner1[order] = corner[tetrahedra[order][0]];
+            corner2[order] = corner[tetrahedra[order][1]];
+        }
+    }
+
+    public int lookup(int color) {
+        int r = (color >> 16) & 0x0000ff;
+        int g = (color >> 8) & 0x0000ff;
+        int b = color & 0x0000ff;
+        int cell = cellOffsetR[r] + cellOffsetG[g] + cellOffsetB[b];
+        int fr = cellWeight[r];
+        int fg = cellWeight[g];
+        int fb = cellWeight[b];
+        // the same tetrahedra as SVSFile.interpolateLut(), picked without
+        // branches (which a tile's colors would keep mispredicting): the
+        // weights go by the sorted fractions and the two middle corners by
+        // the order of the fractions
+        int fMax = Math.max(fr, Math.max(fg, fb));
+        int fMin = Math.min(fr, Math.min(fg, fb));
+        int fMid = fr + fg + fb - fMax - fMin;
+        int order = (((fg - fr) >>> 31) << 2) | (((fb - fg) >>> 31) << 1) | ((fb - fr) >>> 31);
+        long v = nodes[cell] * (0x100 - fMax) + nodes[cell + corner1[order]] * (fMax - fMid) + nodes[cell + corner2[order]] * (fMid - fMin) + nodes[cell + corner[7]] * fMin + LANE_ROUNDING;
+        return (int)((((v >> 40) & LANE_MASK) >> 8) << 16 | (((v >> 20) & LANE_MASK) >> 8) << 8 | ((v & LANE_MASK) >> 8));
+    }
+
+    // CIE76 delta E between the grid and the full table over an 85x85x85
+    // sample of colors (every 3rd level, offset so that most fall between
+    // the nodes)
+    public void reportError(int[] lut) {
+        float[] deltaE = new float[85 * 85 * 85];
+        int x = 0;
+        for(int r = 1; r < 0x100; r += 3) {
+            for(int g = 1; g < 0x100; g += 3) {
+                for(int b = 1; b < 0x100; b += 3) {
+                    int color = (r << 16) | (g << 8) | b;
+                    float[] lab0 = toLab(lut[color]);
+                    float[] lab1 = toLab(lookup(color));
+                    deltaE[x++] = (float)Math.sqrt((lab0[0] - lab1[0]) * (lab0[0] - lab1[0]) + (lab0[1] - lab1[1]) * (lab0[1] - lab1[1]) + (lab0[2] - lab1[2]) * (lab0[2] - lab1[2]));
+                }
+            }
+        }
+        double sum = 0;
+        for(float d : deltaE) {
+            sum += d;
+        }
+        Arrays.sort(deltaE);
+        logger.log(Level.INFO, String.format("%dx%dx%d CLUT delta E (CIE76) against the full CLUT over %d sampled colors: mean = %5.3f, 95th percentile = %5.3f, max = %5.3f", NODES, NODES, NODES, deltaE.length, sum / deltaE.length, deltaE[(int)(deltaE.length * 0.95)], deltaE[deltaE.length - 1]));
+    }
+
+    // sRGB (D65) to CIE L*a*b*
+    static float[] toLab(int rgb) {
+        float r = LutAdjustment.toLinear(((rgb >> 16) & 0x0000ff) / 255f);
+        float g = LutAdjustment.toLinear(((rgb >> 8) & 0x0000ff) / 255f);
+        float b = LutAdjustment.toLinear((rgb & 0x0000ff) / 255f);
+        double fx = labF((0.4124 * r + 0.3576 * g + 0.1805 * b) / 0.95047);
+        double fy = labF(0.2126 * r + 0.7152 * g + 0.0722 * b);
+        double fz = labF((0.0193 * r + 0.1192 * g + 0.9505 * b) / 1.08883);
+        return new float[] { (float)(116 * fy - 16), (float)(500 * (fx - fy)), (float)(200 * (fy - fz)) };
+    }
+
+    static double labF(double t) {
+        return t > 216.0 / 24389 ? Math.cbrt(t) : (24389.0 / 27 * t + 16) / 116;
+    }
+
+}
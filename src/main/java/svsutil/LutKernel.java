@@ -0,0 +1,270 @@
+/**
+ * MIT License
+ *
+ * Copyright (c) 2022 Geoffrey H. Smith
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package svsutil;
+
+import java.util.Arrays;
+
+/**
+ * The kernels that map a decoded tile's pixels through the 256x256x256 CLUT
+ * in place, in the tile's own raster bytes (8-bit samples, interleaved in
+ * any band order, e.g., TYPE_3BYTE_BGR as the JPEG reader decodes to). The
+ * direct kernel does a random lookup into the 64 Mb table for every pixel.
+ * The memo kernel collects the tile's distinct colors in a small
+ * open-addressing hash table as it goes and looks each color up only
+ * once, which keeps the lookups in cache for the typical histology tile (a
+ * few thousand colors spread over the table). With up to a thousand or so
+ * colors (e.g., a background tile) the direct lookups stay in cache anyway,
+ * so the auto engine counts the distinct colors in a sample of the tile's
+ * pixels and only uses the memo kernel for a tile with more, falling back to
+ * direct lookups if the tile turns out to have nearly as many colors as
+ * pixels (e.g., noise). See LutBenchmark for where each one wins.
+ * 
+ * The recolor pipeline runs the kernels in the recolor worker's thread,
+ * since the workers are already parallel.
+ * 
+ * @author geoffrey.smith@emory.edu
+ */
+public class LutKernel {
+
+    public static final int ENGINE_AUTO = 0;
+    public static final int ENGINE_DIRECT = 1;
+    public static final int ENGINE_MEMO = 2;
+    public static final int ENGINE_GRID = 3; // see LutGrid
+    public static final int ENGINE_SIMD = 4; // see LutSimd
+    public static final String[] ENGINE_NAMES = { "auto", "direct", "memo", "grid", "simd" };
+
+    // the auto engine samples AUTO_SAMPLE_SIZE pixels and uses the memo
+    // kernel if it finds at least AUTO_MIN_DISTINCT distinct colors (about
+    // 3,000 colors in the tile), giving up on the hash table when the tile
+    // has more than 1/AUTO_DISTINCT_DIVISOR as many distinct colors as pixels;
+    // these are estimates, not yet measured on a machine where the table
+    // does not fit in cache (where it does, direct wins at every color
+    // count), which is why direct rather than auto is the default engine
+    public static final int AUTO_SAMPLE_SIZE = 0x400;
+    public static final int AUTO_MIN_DISTINCT = 0x340;
+    public static final int AUTO_DISTINCT_DIVISOR = 4;
+
+    // the memo kernel's hash table starts with room for this many distinct
+    // colors and doubles when a tile has more
+    public static final int MEMO_INITIAL_DISTINCT = 0x1000;
+
+    // a memo kernel (or sample) hash table; a slot holds a color of the
+    // current tile only if its stamp is the current generation, so starting
+    // a new tile is an increment instead of clearing the table
+    static class MemoTable {
+        int[] colors = null;
+        int[] colorsMapped = null;
+        int[] stamps = null;
+        int generation = 0;
+        int bits = 0;
+        MemoTable(int bits) {
+            this.bits = bits;
+            colors = new int[1 << bits];
+            colorsMapped = new int[1 << bits];
+            stamps = new int[1 << bits];
+        }
+        // empties the table for a new tile
+        void nextGeneration() {
+            if(++generation == 0) {
+                // the stamps wrapped around, so a stale stamp could match
+                Arrays.fill(stamps, 0);
+                generation = 1;
+            }
+        }
+        // doubles the table, keeping the current tile's colors
+        void grow() {
+            int[] colorsOld = colors;
+            int[] colorsMappedOld = colorsMapped;
+            int[] stampsOld = stamps;
+            bits++;
+            colors = new int[1 << bits];
+            colorsMapped = new int[1 << bits];
+            stamps = new int[1 << bits];
+            int mask = (1 << bits) - 1;
+            for(int x = 0; x < stampsOld.length; x++) {
+                if(stampsOld[x] == generation) {
+                    int slot = (colorsOld[x] * 0x9e3779b1) >>> (32 - bits) & mask;
+                    while(stamps[slot] == generation) {
+                        slot = (slot + 1) & mask;
+                    }
+                    colors[slot] = colorsOld[x];
+                    colorsMapped[slot] = colorsMappedOld[x];
+                    stamps[slot] = generation;
+                }
+            }
+        }
+    }
+
+    // per-thread hash tables, so a recolor worker allocates its table once
+    // (and again only when a tile outgrows it)
+    static final ThreadLocal<MemoTable> memoTables = new ThreadLocal<>();
+    static final ThreadLocal<MemoTable> sampleTables = ThreadLocal.withInitial(() -> new MemoTable(32 - Integer.numberOfLeadingZeros(AUTO_SAMPLE_SIZE * 2 - 1)));
+
+    // maps pixelCount pixels of 8-bit samples starting at offset,
+    // pixelStride bytes apart, with the R, G and B samples at bandOffsets
+    // from the start of the pixel (e.g., {2, 1, 0} for TYPE_3BYTE_BGR); the
+    // grid engine needs the grid
+    public static void applyInterleaved(int engine, int[] lut, LutGrid lutGrid, byte[] data, int offset, int pixelCount, int pixelStride, int[] bandOffsets) {
+        switch(engine) {
+            case ENGINE_DIRECT: {
+                direct(lut, data, offset, pixelCount, pixelStride, bandOffsets);
+                break;
+            }
+            case ENGINE_MEMO: {
+                memo(lut, data, offset, pixelCount, pixelStride, bandOffsets, pixelCount);
+                break;
+            }
+            case ENGINE_GRID: {
+                grid(lutGrid, data, offset, pixelCount, pixelStride, bandOffsets);
+                break;
+            }
+            case ENGINE_SIMD: {
+                LutSimd.apply(lut, data, offset, pixelCount, pixelStride, bandOffsets);
+                break;
+            }
+            default: {
+                if(sampleDistinct(data, offset, pixelCount, pixelStride, bandOffsets) >= AUTO_MIN_DISTINCT) {
+                    memo(lut, data, offset, pixelCount, pixelStride, bandOffsets, pixelCount / AUTO_DISTINCT_DIVISOR);
+                }
+                else {
+                    direct(lut, data, offset, pixelCount, pixelStride, bandOffsets);
+                }
+            }
+        }
+    }
+
+    public static void direct(int[] lut, byte[] data, int offset, int pixelCount, int pixelStride, int[] bandOffsets) {
+        int r = bandOffsets[0];
+        int g = bandOffsets[1];
+        int b = bandOffsets[2];
+        for(int i = offset, end = offset + pixelCount * pixelStride; i < end; i += pixelStride) {
+            int color = lut[(data[i + r] & 0xff) << 16 | (data[i + g] & 0xff) << 8 | (data[i + b] & 0xff)];
+            data[i + r] = (byte)(color >> 16);
+            data[i + g] = (byte)(color >> 8);
+            data[i + b] = (byte)color;
+        }
+    }
+
+    public static void grid(LutGrid lutGrid, byte[] data, int offset, int pixelCount, int pixelStride, int[] bandOffsets) {
+        int r = bandOffsets[0];
+        int g = bandOffsets[1];
+        int b = bandOffsets[2];
+        for(int i = offset, end = offset + pixelCount * pixelStride; i < end; i += pixelStride) {
+            int color = lutGrid.lookup((data[i + r] & 0xff) << 16 | (data[i + g] & 0xff) << 8 | (data[i + b] & 0xff));
+            data[i + r] = (byte)(color >> 16);
+            data[i + g] = (byte)(color >> 8);
+            data[i + b] = (byte)color;
+        }
+    }
+
+    // the number of distinct colors in an evenly spaced sample of pixels
+    static int sampleDistinct(byte[] data, int offset, int pixelCount, int pixelStride, int[] bandOffsets) {
+        int r = bandOffsets[0];
+        int g = bandOffsets[1];
+        int b = bandOffsets[2];
+        int stride = Math.max(1, pixelCount / AUTO_SAMPLE_SIZE);
+        MemoTable sampleTable = sampleTables.get();
+        sampleTable.nextGeneration();
+        int generation = sampleTable.generation;
+        int bits = sampleTable.bits;
+        int mask = (1 << bits) - 1;
+        int[] colors = sampleTable.colors;
+        int[] stamps = sampleTable.stamps;
+        int distinct = 0;
+        for(int x = 0; x < pixelCount; x += stride) {
+            int i = offset + x * pixelStride;
+            int color = (data[i + r] & 0xff) << 16 | (data[i + g] & 0xff) << 8 | (data[i + b] & 0xff);
+            int slot = (color * 0x9e3779b1) >>> (32 - bits) & mask;
+            while(stamps[slot] != generation || colors[slot] != color) {
+                if(stamps[slot] != generation) {
+                    colors[slot] = color;
+                    stamps[slot] = generation;
+                    distinct++;
+                    break;
+                }
+                slot = (slot + 1) & mask;
+            }
+        }
+        return distinct;
+    }
+
+    // remaps through a hash table of the distinct colors seen so far; after
+    // distinctLimit distinct colors the rest of the tile is looked up
+    // directly; returns the number of distinct colors hashed
+    public static int memo(int[] lut, byte[] data, int offset, int pixelCount, int pixelStride, int[] bandOffsets, int distinctLimit) {
+        int r = bandOffsets[0];
+        int g = bandOffsets[1];
+        int b = bandOffsets[2];
+        MemoTable memoTable = memoTables.get();
+        if(memoTable == null) {
+            memoTable = new MemoTable(32 - Integer.numberOfLeadingZeros(MEMO_INITIAL_DISTINCT * 4 - 1));
+            memoTables.set(memoTable);
+        }
+        memoTable.nextGeneration();
+        int generation = memoTable.generation;
+        int bits = memoTable.bits;
+        int mask = (1 << bits) - 1;
+        int[] colors = memoTable.colors;
+        int[] colorsMapped = memoTable.colorsMapped;
+        int[] stamps = memoTable.stamps;
+        int distinct = 0;
+        for(int i = offset, end = offset + pixelCount * pixelStride; i < end; i += pixelStride) {
+            int color = (data[i + r] & 0xff) << 16 | (data[i + g] & 0xff) << 8 | (data[i + b] & 0xff);
+            int slot = (color * 0x9e3779b1) >>> (32 - bits) & mask;
+            while(stamps[slot] != generation || colors[slot] != color) {
+                if(stamps[slot] != generation) {
+                    if(distinct == distinctLimit) {
+                        // too many colors, the rest of the tile is looked up directly
+                        direct(lut, data, i, (end - i) / pixelStride, pixelStride, bandOffsets);
+                        return distinct;
+                    }
+                    if(distinct == (mask + 1) / 4) {
+                        // keep the table at most a quarter full
+                        memoTable.grow();
+                        bits = memoTable.bits;
+                        mask = (1 << bits) - 1;
+                        colors = memoTable.colors;
+                        colorsMapped = memoTable.colorsMapped;
+                        stamps = memoTable.stamps;
+                        slot = (color * 0x9e3779b1) >>> (32 - bits) & mask;
+                        continue;
+                    }
+                    colors[slot] = color;
+                    colorsMapped[slot] = lut[color];
+                    stamps[slot] = generation;
+                    distinct++;
+                    break;
+                }
+                slot = (slot + 1) & mask;
+            }
+            int mapped = colorsMapped[slot];
+            data[i + r] = (byte)(mapped >> 16);
+            data[i + g] = (byte)(mapped >> 8);
+            data[i + b] = (byte)mapped;
+        }
+        return distinct;
+    }
+
+}
@@ -0,0 +1,127 @@
+/**
+ * MIT License
+ *
+ * Copyright (c) 2022 Geoffrey H. Smith
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package svsutil;
+
+import java.awt.color.ICC_Profile;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The process-wide registry of parsed ICC profiles and computed CLUTs, so
+ * that any number of SVS files opened in one JVM that carry the same ICC
+ * profile (e.g., every slide from one scanner) share one parsed profile and
+ * one 64 Mb CLUT. The CLUTs are keyed like the CLUT cache files (see
+ * LutCache.getKey) and reference counted: an SVS file acquires its CLUT in
+ * SVSFile.computeLut() and releases it in SVSFile.releaseLut(), and the
+ * least recently used unreferenced CLUTs are evicted once the unreferenced
+ * ones take more than memoryBudget bytes.
+ * 
+ * @author geoffrey.smith@emory.edu
+ */
+public class LutRegistry {
+
+    static final Logger logger = Logger.getLogger(LutRegistry.class.getName());
+
+    public static long memoryBudget = 0x10000000L; // 256 Mb of unreferenced CLUTs
+
+    static final Map<ByteBuffer, ICC_Profile> profileMap = new ConcurrentHashMap<>();
+    static final Map<String, Object> lockMap = new ConcurrentHashMap<>();
+    static final LinkedHashMap<String, Entry> entryMap = new LinkedHashMap<>(16, 0.75f, true); // LRU order
+
+    static class Entry {
+        int[] lut = null;
+        int refCount = 0;
+    }
+
+    // the parsed profile for these ICC bytes (keyed by content)
+    public static ICC_Profile getProfile(byte[] iccBytes) {
+        return profileMap.computeIfAbsent(ByteBuffer.wrap(iccBytes.clone()), x -> ICC_Profile.getInstance(iccBytes));
+    }
+
+    // held while a CLUT is looked up and, if it isn't registered, computed,
+    // so that two SVS files with the same profile don't both compute it; the
+    // lock goes when its CLUT leaves the registry
+    public static Object getLock(String lutKey) {
+        return lockMap.computeIfAbsent(lutKey, x -> new Object());
+    }
+
+    // the registered CLUT with a reference added, or null
+    public static synchronized int[] acquire(String lutKey) {
+        Entry entry = entryMap.get(lutKey);
+        if(entry == null) {
+            return null;
+        }
+        entry.refCount++;
+        return entry.lut;
+    }
+
+    // registers a newly computed CLUT with one reference and returns it; if
+    // the CLUT was registered in the meantime (its lock was dropped while it
+    // was computed), the registered one is referenced and returned instead
+    public static synchronized int[] register(String lutKey, int[] lut) {
+        Entry entry = entryMap.get(lutKey);
+        if(entry == null) {
+            entry = new Entry();
+            entry.lut = lut;
+            entryMap.put(lutKey, entry);
+        }
+        entry.refCount++;
+        evict();
+        return entry.lut;
+    }
+
+    public static synchronized void release(String lutKey) {
+        Entry entry = entryMap.get(lutKey);
+        if(entry != null && entry.refCount > 0) {
+            entry.refCount--;
+            evict();
+        }
+    }
+
+    static void evict() {
+        long unreferencedBytes = 0;
+        for(Entry entry : entryMap.values()) {
+            if(entry.refCount == 0) {
+                unreferencedBytes += entry.lut.length * 4L;
+            }
+        }
+        Iterator<Map.Entry<String, Entry>> entryIterator = entryMap.entrySet().iterator();
+        while(unreferencedBytes > memoryBudget && entryIterator.hasNext()) {
+            Map.Entry<String, Entry> entry = entryIterator.next();
+            if(entry.getValue().refCount == 0) {
+                unreferencedBytes -= entry.getValue().lut.length * 4L;
+                entryIterator.remove();
+                lockMap.remove(entry.getKey());
+                logger.log(Level.INFO, String.format("evicted color lookup table (CLUT) %s from registry", entry.getKey()));
+            }
+        }
+    }
+
+}
@@ -0,0 +1,46 @@
+/**
+ * MIT License
+ *
+ * Copyright (c) 2022 Geoffrey H. Smith
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package svsutil;
+
+/**
+ * The SIMD CLUT kernel. This is the Java 8 version of the class, which just
+ * runs the scalar kernel; the multi-release jar also holds a Java 17 version
+ * (src/main/java17) that runs a Vector API kernel when the JVM is started
+ * with --add-modules jdk.incubator.vector.
+ * 
+ * @author geoffrey.smith@emory.edu
+ */
+public class LutSimd {
+
+    public static boolean isAvailable() {
+        return false;
+    }
+
+    // see LutKernel.applyInterleaved
+    public static void apply(int[] lut, byte[] data, int offset, int pixelCount, int pixelStride, int[] bandOffsets) {
+        LutKernel.direct(lut, data, offset, pixelCount, pixelStride, bandOffsets);
+    }
+
+}
@@ -49,12 +49,17 @@ public class MacroUtil {
     public static void main(String[] args) throws IOException, InterruptedException {
         
         boolean extract = false;
+        String cacheDirName = null;
                 
         Options options = new Options();
 
         Option optionExtract = new Option("x", "extract", false, String.format("extract macro to JPG"));
         optionExtract.setRequired(false);
         options.addOption(optionExtract);
+
+        Option optionCache = new Option("k", "cache", true, String.format("cache directory for TIFF directory indexes; reopening a slide with an index in this directory skips parsing its TIFF directories (default = no cache)"));
+        optionCache.setRequired(false);
+        options.addOption(optionCache);
         
         CommandLineParser parser = new DefaultParser();
         HelpFormatter formatter = new HelpFormatter();
@@ -63,6 +68,7 @@ public class MacroUtil {
         try {
             cmd = parser.parse(options, args);
             if(cmd.hasOption(optionExtract)) { extract = true; }
+            if(cmd.hasOption(optionCache)) { cacheDirName = cmd.getOptionValue(optionCache); }
             if(cmd.getArgs().length != 1) { throw new ParseException("no file specified"); }
             if(!cmd.getArgs()[0].toLowerCase().endsWith(".svs")) { throw new ParseException("file name must have a 'svs' extension"); }
         }
@@ -72,7 +78,7 @@ public class MacroUtil {
             System.exit(1);
         }
         
-        final SVSFile svsFile = new SVSFile(cmd.getArgs()[0]);
+        final SVSFile svsFile = SVSFile.openHeadersOnly(cmd.getArgs()[0], cacheDirName);
 
         if(extract) {
 
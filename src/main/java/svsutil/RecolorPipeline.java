@@ -0,0 +1,261 @@
+/**
+ * MIT License
+ *
+ * Copyright (c) 2022 Geoffrey H. Smith
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package svsutil;
+
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.metadata.IIOMetadata;
+
+/**
+ * The staged recolor engine: tiles go read -> decode -> recolor -> encode ->
+ * collect, with a bounded queue in front of every stage after the read
+ * stage and any number of workers per stage (the collect stage only stores
+ * the recolored tile bytes, so it has one). The read stage is the recolor
+ * runner's claiming loop (see RecolorRunner.run) and the scanner-specific
+ * work of the other stages is delegated to the recolor runner, so the same
+ * engine drives both GT450 and AT2 SVS files. A full queue blocks the stage
+ * in front of it, so a slow stage shows up as a busy stage with a full
+ * queue and idle stages around it (see getOccupancy).
+ * 
+ * The tile buffers and decoded images a tile uses on its way through are
+ * taken from pools and given back once the tile has been collected (the
+ * recolored tile's buffer once it has been written, see TileCollector), so
+ * the number of them allocated depends on the queue sizes and the tile
+ * collector's window, not on the number of tiles.
+ * 
+ * @author geoffrey.smith@emory.edu
+ */
+public class RecolorPipeline {
+
+    static final Logger logger = Logger.getLogger(RecolorPipeline.class.getName());
+
+    public static final int STAGE_READ = 0;
+    public static final int STAGE_DECODE = 1;
+    public static final int STAGE_RECOLOR = 2;
+    public static final int STAGE_ENCODE = 3;
+    public static final int STAGE_COLLECT = 4;
+    public static final String[] STAGE_NAMES = new String[] { "read", "decode", "recolor", "encode", "collect" };
+
+    public static final int QUEUE_TILES_PER_WORKER = 4;
+    public static final int TILE_BUFFER_CAPACITY = 0x00020000; // grows as needed
+
+    static final Job END = new Job(); // passed down the stages after the last tile
+
+    public RecolorRunner recolorRunner = null;
+    public int[] stageWorkers = null;
+
+    List<BlockingQueue<Job>> stageQueueList = new ArrayList<>(); // the queue in front of each stage, none for the read stage
+    List<Thread> threadList = new ArrayList<>(); // every worker of every stage
+    AtomicLong[] stageBusyNanos = null;
+    AtomicInteger[] stageWorkersRunning = null;
+    long startNanos = -1;
+    Queue<TileBuffer> tileBufferPool = new ConcurrentLinkedQueue<>();
+    Queue<BufferedImage> imagePool = new ConcurrentLinkedQueue<>();
+
+    // a tile on its way through the stages
+    public static class Job {
+        public long tileKey = -1;
+        public TIFFDir tiffDir = null;
+        public int tileIndexInSVS = -1;
+        public int tileNo = -1;
+        public TileBuffer tileBuffer = null; // the tile's bytes as read
+        public BufferedImage image = null;
+        public IIOMetadata imageMetadata = null;
+        public boolean white = false; // every pixel brighter than 200, see RecolorRunnerGT450
+        public TileBuffer recoloredTileBuffer = null;
+    }
+
+    public RecolorPipeline(RecolorRunner recolorRunner, int readWorkers, int decodeWorkers, int recolorWorkers, int encodeWorkers) {
+        this.recolorRunner = recolorRunner;
+        this.stageWorkers = new int[] { readWorkers, decodeWorkers, recolorWorkers, encodeWorkers, 1 };
+        recolorRunner.recolorPipeline = this;
+        stageBusyNanos = new AtomicLong[STAGE_NAMES.length];
+        stageWorkersRunning = new AtomicInteger[STAGE_NAMES.length];
+        for(int stage = 0; stage < STAGE_NAMES.length; stage++) {
+            stageQueueList.add(stage == STAGE_READ ? null : new ArrayBlockingQueue<>(QUEUE_TILES_PER_WORKER * stageWorkers[stage]));
+            stageBusyNanos[stage] = new AtomicLong();
+            stageWorkersRunning[stage] = new AtomicInteger(stageWorkers[stage]);
+        }
+    }
+
+    // runs every stage to completion
+    public void run() throws InterruptedException {
+        start();
+        join();
+    }
+
+    // starts every stage, the tiles can be taken from the TileCollector as
+    // they are collected
+    public void start() {
+        startNanos = System.nanoTime();
+        for(int stage = 0; stage < STAGE_NAMES.length; stage++) {
+            for(int x = 0; x < stageWorkers[stage]; x++) {
+                final int workerStage = stage;
+                Thread thread = new Thread(() -> runWorker(workerStage), String.format("%s-%d", STAGE_NAMES[stage], x));
+                thread.start();
+                threadList.add(thread);
+            }
+        }
+    }
+
+    // waits for every stage to finish
+    public void join() throws InterruptedException {
+        for(Thread thread : threadList) {
+            thread.join();
+        }
+    }
+
+    void runWorker(int stage) {
+        try {
+            if(stage == STAGE_READ) {
+                recolorRunner.run();
+            }
+            else {
+                // the JPEG codecs are not thread safe, so every decode and
+                // encode worker has its own
+                ImageReader reader = stage == STAGE_DECODE ? recolorRunner.createReader() : null;
+                RecolorRunner.Encoder encoder = stage == STAGE_ENCODE ? recolorRunner.createEncoder() : null;
+                BlockingQueue<Job> stageQueue = stageQueueList.get(stage);
+                while(true) {
+                    Job job = stageQueue.take();
+                    if(job == END) {
+                        break;
+                    }
+                    long jobStartNanos = System.nanoTime();
+                    switch(stage) {
+                        case STAGE_DECODE:
+                            recolorRunner.decode(reader, job);
+                            break;
+                        case STAGE_RECOLOR:
+                            recolorRunner.recolor(job);
+                            break;
+                        case STAGE_ENCODE:
+                            recolorRunner.encode(encoder, job);
+                            break;
+                        default:
+                            recolorRunner.collect(job);
+                            break;
+                    }
+                    stageBusyNanos[stage].addAndGet(System.nanoTime() - jobStartNanos);
+                    if(stage < STAGE_COLLECT) {
+                        stageQueueList.get(stage + 1).put(job);
+                    }
+                    else {
+                        recycle(job);
+                    }
+                }
+                if(reader != null) {
+                    reader.dispose();
+                }
+                if(encoder != null) {
+                    encoder.writer.dispose();
+                }
+            }
+            // the last worker of a stage to finish ends the next stage
+            if(stageWorkersRunning[stage].decrementAndGet() == 0 && stage < STAGE_COLLECT) {
+                for(int x = 0; x < stageWorkers[stage + 1]; x++) {
+                    stageQueueList.get(stage + 1).put(END);
+                }
+            }
+        }
+        catch(Exception e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+    }
+
+    // hands a tile from the read stage to the decode stage
+    public void put(Job job, long readNanos) throws InterruptedException {
+        stageBusyNanos[STAGE_READ].addAndGet(readNanos);
+        stageQueueList.get(STAGE_DECODE).put(job);
+    }
+
+    public void giveTileBuffer(TileBuffer tileBuffer) {
+        tileBufferPool.add(tileBuffer);
+    }
+
+    public TileBuffer takeTileBuffer() {
+        TileBuffer tileBuffer = tileBufferPool.poll();
+        return tileBuffer != null ? tileBuffer : new TileBuffer(TILE_BUFFER_CAPACITY);
+    }
+
+    // a decode destination of the JPEG reader's type for the image
+    public BufferedImage takeImage(ImageTypeSpecifier imageTypeSpecifier, int width, int height) {
+        BufferedImage image = imagePool.poll();
+        if(
+            image != null
+            && image.getWidth() == width
+            && image.getHeight() == height
+            && image.getColorModel().equals(imageTypeSpecifier.getColorModel())
+            && image.getSampleModel().getClass().equals(imageTypeSpecifier.getSampleModel().getClass())
+            && image.getSampleModel().getNumBands() == imageTypeSpecifier.getSampleModel().getNumBands()
+        ) {
+            return image;
+        }
+        return imageTypeSpecifier.createBufferedImage(width, height);
+    }
+
+    // gives a collected tile's buffers and image back to the pools
+    void recycle(Job job) {
+        if(job.tileBuffer != null) {
+            tileBufferPool.add(job.tileBuffer);
+        }
+        if(job.recoloredTileBuffer != null) {
+            tileBufferPool.add(job.recoloredTileBuffer);
+        }
+        if(job.image != null) {
+            imagePool.add(job.image);
+        }
+        job.tileBuffer = null;
+        job.recoloredTileBuffer = null;
+        job.image = null;
+    }
+
+    // for each stage, the share of its workers' time spent working (as
+    // opposed to waiting on the queues) and how full the queue in front of it is
+    public String getOccupancy() {
+        long elapsedNanos = Math.max(1, System.nanoTime() - startNanos);
+        StringBuilder occupancy = new StringBuilder();
+        for(int stage = 0; stage < STAGE_NAMES.length; stage++) {
+            occupancy.append(String.format("%s%s %d x %3.0f%% busy", stage > 0 ? ", " : "", STAGE_NAMES[stage], stageWorkers[stage], 100f * stageBusyNanos[stage].get() / elapsedNanos / stageWorkers[stage]));
+            BlockingQueue<Job> stageQueue = stageQueueList.get(stage);
+            if(stageQueue != null) {
+                occupancy.append(String.format(" (queue %d/%d)", stageQueue.size(), stageQueue.size() + stageQueue.remainingCapacity()));
+            }
+        }
+        return occupancy.toString();
+    }
+
+}
@@ -24,9 +24,30 @@
 
 package svsutil;
 
+import java.awt.BasicStroke;
+import java.awt.Color;
+import java.awt.Font;
+import java.awt.FontMetrics;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.awt.image.Raster;
+import java.io.IOException;
+import java.util.Iterator;
 import java.util.logging.Logger;
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageWriter;
+import javax.imageio.plugins.jpeg.JPEGImageWriteParam;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageOutputStream;
 
 /**
+ * The read stage and the scanner-specific parts of the other stages of the
+ * recolor pipeline (see RecolorPipeline). run() claims tiles and hands them
+ * to the decode stage; the subclasses say how a tile becomes a JPEG stream,
+ * how it is encoded and how it is annotated.
  * 
  * @author geoffrey.smith@emory.edu
  */
@@ -42,6 +63,13 @@ public abstract class RecolorRunner implements Runnable {
     public int startWithTiffDirIndex = -1;
     public boolean dummyTile = false;
     public boolean noRecode = false;
+    public RecolorPipeline recolorPipeline = null;
+
+    // an encode worker's JPEG writer
+    public static class Encoder {
+        public ImageWriter writer = null;
+        public JPEGImageWriteParam iwp = null;
+    }
 
     public RecolorRunner(SVSFile svsFile, int quality, int skip, boolean noRecolor, boolean annotate, int startWithTiffDirIndex, boolean dummyTile, boolean noRecode) {
         this.svsFile = svsFile;
@@ -54,8 +82,157 @@ public abstract class RecolorRunner implements Runnable {
         this.noRecode = noRecode;
     }
     
+    // the read stage; the tiles are claimed from the SVS file's tile
+    // scheduler, so any number of threads may run this at once
     @Override
     public void run() {
+
+        try {
+
+            TileScheduler tileScheduler = svsFile.tileScheduler;
+            int worker = tileScheduler.newWorker();
+            int unit;
+            while((unit = tileScheduler.next(worker)) >= 0) {
+                TIFFDir tiffDir = tileScheduler.tiffDir(unit);
+                int y = tileScheduler.indexInSVS(unit);
+                int tileNo = tileScheduler.tileNo(unit);
+                int actuallySkipped = tileScheduler.skipped(unit);
+                // the tiles are only claimed as far ahead of the writer as
+                // the tile collector has room for; waiting for the writer is
+                // not reading, so it isn't counted as busy
+                svsFile.tileCollector.awaitWindow(tileNo + actuallySkipped);
+                long readStartNanos = System.nanoTime();
+                RecolorPipeline.Job job = new RecolorPipeline.Job();
+                job.tileKey = tiffDir.tileKey(y);
+                job.tiffDir = tiffDir;
+                job.tileIndexInSVS = y;
+                job.tileNo = tileNo;
+                job.tileBuffer = recolorPipeline.takeTileBuffer();
+                getTileBytes(tiffDir, y, tileNo, job.tileBuffer);
+                // the skipped tiles are copied as is; they are read after this
+                // tile so that tiles are always taken from the read-ahead in order
+                for(int a = y + 1; a < y + 1 + actuallySkipped; a++) {
+                    TileBuffer skippedTileBuffer = recolorPipeline.takeTileBuffer();
+                    getTileBytes(tiffDir, a, tileNo + (a - y), skippedTileBuffer);
+                    svsFile.tileCollector.put(tileNo + (a - y), skippedTileBuffer);
+                }
+                recolorPipeline.put(job, System.nanoTime() - readStartNanos);
+            }
+
+        }
+        catch(Exception e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+
+    }
+
+    // the tile's bytes from the read-ahead, if there is one, otherwise
+    // straight from the SVS file
+    void getTileBytes(TIFFDir tiffDir, int indexInSVS, int tileNo, TileBuffer tileBuffer) throws InterruptedException {
+        tileBuffer.length = 0;
+        tileBuffer.ensureCapacity(tiffDir.tileLengths[indexInSVS]);
+        if(svsFile.tileReadAhead != null) {
+            svsFile.tileReadAhead.getTileBytes(tiffDir, indexInSVS, tileNo, tileBuffer.bytes);
+        }
+        else {
+            svsFile.getBytes(tiffDir.tileOffsets[indexInSVS], tileBuffer.bytes, 0, tiffDir.tileLengths[indexInSVS]);
+        }
+        tileBuffer.length = tiffDir.tileLengths[indexInSVS];
+    }
+
+    // the tile as a JPEG stream the JPEG reader can decode on its own
+    abstract ImageInputStream getJPEGStream(RecolorPipeline.Job job);
+
+    abstract JPEGImageWriteParam getWriteParam(ImageWriter writer);
+
+    // the text the tile is annotated with
+    abstract String getAnnotation(RecolorPipeline.Job job);
+
+    ImageReader createReader() {
+        Iterator<ImageReader> readers = ImageIO.getImageReadersByFormatName("jpeg");
+        ImageReader reader = readers.next();
+        reader.addIIOReadWarningListener((ImageReader source, String warning) -> {
+            System.err.println(warning);
+            System.exit(1);
+        });
+        return reader;
+    }
+
+    Encoder createEncoder() {
+        Encoder encoder = new Encoder();
+        Iterator<ImageWriter> writers = ImageIO.getImageWritersByFormatName("jpeg");
+        encoder.writer = writers.next();
+        encoder.iwp = getWriteParam(encoder.writer);
+        return encoder;
+    }
+
+    // decodes into a recycled image of the type the reader would have
+    // allocated
+    void decode(ImageReader reader, RecolorPipeline.Job job) throws IOException {
+        try(ImageInputStream imageInputStream = getJPEGStream(job)) {
+            reader.setInput(imageInputStream);
+            ImageReadParam irp = reader.getDefaultReadParam();
+            irp.setDestination(recolorPipeline.takeImage(reader.getImageTypes(0).next(), reader.getWidth(0), reader.getHeight(0)));
+            job.image = reader.read(0, irp);
+            job.imageMetadata = reader.getImageMetadata(0);
+        }
+    }
+
+    void recolor(RecolorPipeline.Job job) {
+        if(!noRecolor) {
+            svsFile.applyLut(job.image);
+        }
+        if(dummyTile) {
+            job.white = isWhite(job.image);
+        }
+        if(annotate) {
+            TIFFDir tiffDir = job.tiffDir;
+            Graphics2D graphics = job.image.createGraphics();
+            graphics.setColor(Color.BLACK);
+            graphics.setStroke(new BasicStroke(5f));
+            graphics.drawLine(0, 0, 10, 10);
+            graphics.drawLine(0, tiffDir.tileHeight - 1, 10, tiffDir.tileHeight - 11);
+            graphics.drawLine(tiffDir.tileWidth - 1, tiffDir.tileHeight - 1, tiffDir.tileWidth - 11, tiffDir.tileHeight - 11);
+            graphics.drawLine(tiffDir.tileWidth - 1, 0, tiffDir.tileWidth - 11, 10);
+            graphics.setFont(new Font("TimesRoman", Font.BOLD, 30));
+            FontMetrics metrics = graphics.getFontMetrics();
+            graphics.drawString(getAnnotation(job), 20, 1 * (metrics.getHeight() + 20));
+        }
+    }
+
+    // true if every R, G and B sample of the tile is over 200
+    static boolean isWhite(BufferedImage image) {
+        Raster raster = image.getRaster();
+        int[] rowSamples = new int[raster.getWidth() * raster.getNumBands()];
+        for(int y = 0; y < raster.getHeight(); y++) {
+            raster.getPixels(0, y, raster.getWidth(), 1, rowSamples);
+            for(int sample : rowSamples) {
+                if(sample <= 200) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    // encodes into a recycled tile buffer, which the tile then owns
+    void encode(Encoder encoder, RecolorPipeline.Job job) throws IOException {
+        IIOImage iioImage = new IIOImage(job.image, null, null);
+        iioImage.setMetadata(job.imageMetadata);
+        job.recoloredTileBuffer = recolorPipeline.takeTileBuffer();
+        try(ImageOutputStream imageOutputStream = job.recoloredTileBuffer.getImageOutputStream()) {
+            encoder.writer.setOutput(imageOutputStream);
+            encoder.writer.write(null, iioImage, encoder.iwp);
+            imageOutputStream.flush();
+        }
+        encoder.writer.setOutput(null);
+    }
+
+    // hands the recolored tile buffer over to the tile collector
+    void collect(RecolorPipeline.Job job) {
+        svsFile.tileCollector.put(job.tileNo, job.recoloredTileBuffer);
+        job.recoloredTileBuffer = null;
     }
     
 }
@@ -24,36 +24,19 @@
 
 package svsutil;
 
-import java.awt.BasicStroke;
-import java.awt.Color;
-import java.awt.Font;
-import java.awt.FontMetrics;
-import java.awt.Graphics2D;
-import java.awt.image.BufferedImage;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.PipedInputStream;
-import java.io.PipedOutputStream;
-import java.util.Arrays;
-import java.util.Iterator;
 import java.util.List;
-import java.util.Queue;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.Logger;
-import javax.imageio.IIOImage;
-import javax.imageio.ImageIO;
 import javax.imageio.ImageReader;
 import static javax.imageio.ImageWriteParam.MODE_COPY_FROM_METADATA;
 import javax.imageio.ImageWriter;
-import javax.imageio.metadata.IIOMetadata;
 import javax.imageio.metadata.IIOMetadataNode;
 import javax.imageio.plugins.jpeg.JPEGHuffmanTable;
 import javax.imageio.plugins.jpeg.JPEGImageWriteParam;
 import javax.imageio.plugins.jpeg.JPEGQTable;
 import javax.imageio.stream.ImageInputStream;
-import javax.imageio.stream.ImageOutputStream;
-import javax.imageio.stream.MemoryCacheImageInputStream;
-import javax.imageio.stream.MemoryCacheImageOutputStream;
 import org.w3c.dom.NodeList;
 
 /**
@@ -80,205 +63,102 @@ public class RecolorRunnerAT2 extends RecolorRunner {
         (byte)0xff, (byte)0xee, (byte)0x00, (byte)0x0e, (byte)0x41, (byte)0x64, (byte)0x6F, (byte)0x62, (byte)0x65, (byte)0x00, (byte)0x00, (byte)0x00, (byte)0x00, (byte)0x00, (byte)0x00, (byte)0x00
     };
 
+    // the JPEG tables in the TIFF directories are different
+    Map<TIFFDir, byte[]> jpegTablesMap = new ConcurrentHashMap<>();
+    Map<TIFFDir, EncodeTables> encodeTablesMap = new ConcurrentHashMap<>();
+    // per decode worker, the JPEG stream the tile is decoded from
+    ThreadLocal<TileBuffer> jpegBuffers = ThreadLocal.withInitial(() -> new TileBuffer(RecolorPipeline.TILE_BUFFER_CAPACITY));
+
+    static class EncodeTables {
+        JPEGQTable[] qTables = null;
+        JPEGHuffmanTable[] dcHuffmanTables = null;
+        JPEGHuffmanTable[] acHuffmanTables = null;
+    }
+
     public RecolorRunnerAT2(SVSFile svsFile, int quality, int skip, boolean noRecolor, boolean annotate, int startWithTiffDirIndex, boolean dummyTile, boolean noRecode) {
         super(svsFile, quality, skip, noRecolor, annotate, startWithTiffDirIndex, dummyTile, noRecode);
     }
 
+    // THE JPEG TABLES IN THE SVS MUST BE THE FIRST THING IN THE JPEG STREAM!
+    // The tile follows them with an APP14 segment after its SOI marker.
     @Override
-    public void run() {
-
-        try {
-            
-            int tileNo = -1;
-            for(int x = startWithTiffDirIndex; x < svsFile.tiffDirList.size(); x++) {
-
-                // skip the label, macro, etc.
-                TIFFDir tiffDir = svsFile.tiffDirList.get(x);
-                if(tiffDir.tagTileLengthsOffsetInSVS == null) {
-                    continue;
-                }
-                
-                final PipedOutputStream outputStream = new PipedOutputStream();
-                final PipedInputStream inputStream = new PipedInputStream(outputStream, 1000000);
-                final Queue<String> tileIdQueue = new ConcurrentLinkedQueue<>();
-                final int tileWidth = svsFile.tiffDirList.get(0).tileWidth;
-                final int tileHeight = svsFile.tiffDirList.get(0).tileHeight;
-
-                // doing the JPEG encoding and decoding in a separate thread
-                // allows me to use use Java ImageIO streaming with piped streams
-                // and use a single image reader and single image writer for all
-                // of the tiles; I think this might be the fastest way to do JPEG
-                // decoding and encoding versus using ImageIO in a more conventional
-                // fashion
-                Thread jpegStreamThread = new Thread(new Runnable() {
-
-                    public ImageReader reader = null;
-
-                    @Override
-                    public void run() {
-
-                        try {
-
-                            Iterator<ImageReader> readers = ImageIO.getImageReadersByFormatName("jpeg");
-                            reader = readers.next();
-                            reader.addIIOReadWarningListener((ImageReader source, String warning) -> {
-                                System.out.println(warning);
-                                System.exit(1);
-                            });
-                            ImageInputStream imageInputStream = new MemoryCacheImageInputStream(inputStream);
-                            reader.setInput(imageInputStream);
-
-                            Iterator iter = ImageIO.getImageWritersByFormatName("jpeg");            
-                            ImageWriter writer = (ImageWriter)iter.next();
-                            JPEGImageWriteParam iwp = (JPEGImageWriteParam)writer.getDefaultWriteParam();
-                            // Unless MODE_COPY_FROM_METADATA, tables will be created! With
-                            // the AT2 SVS files, the JPEG tables are stored separately from
-                            // tile bytes and the same JPEG tables are used for all tiles,
-                            // to we don't want the JPEG tables in the tile data with an
-                            // AT2 SVS.
-                            iwp.setCompressionMode(MODE_COPY_FROM_METADATA);
-                            ByteArrayOutputStream imageOutputStreamByteStream = new ByteArrayOutputStream(10000000);
-                            ImageOutputStream imageOutputStream = new MemoryCacheImageOutputStream(imageOutputStreamByteStream);
-                            writer.setOutput(imageOutputStream);
-
-                            int imageIndex = 0;
-
-                            while(true) {
-
-                                BufferedImage image = null;
-                                try {
-                                    image = reader.read(imageIndex);
-                                }
-                                catch(IndexOutOfBoundsException e) {  // this will happen when the pipe closes
-                                    reader.dispose();
-                                    writer.dispose();
-                                    break;
-                                }
-
-                                // THE JPEG TABLES IN THE SVS MUST BE THE FIRST
-                                // THING IN THE JPEG STREAM!
-                                if(iwp.getQTables() == null || iwp.getDCHuffmanTables() == null || iwp.getACHuffmanTables() == null) {
-
-                                    IIOMetadataNode node = (IIOMetadataNode)reader.getStreamMetadata().getAsTree("javax_imageio_jpeg_stream_1.0");
-
-                                    List<JPEGQTable> jpegQTableList = new java.util.ArrayList<>();
-                                    {
-                                        NodeList nodeList = node.getElementsByTagName("dqt");
-                                        for(int x = 0; x < nodeList.getLength(); x ++) {
-                                            jpegQTableList.add((JPEGQTable)((IIOMetadataNode)nodeList.item(x).getFirstChild()).getUserObject());
-                                        }
-                                    }
-
-                                    List<JPEGHuffmanTable> jpegHuffmanTableListClass0 = new java.util.ArrayList<>();
-                                    List<JPEGHuffmanTable> jpegHuffmanTableListClass1 = new java.util.ArrayList<>();
-                                    {
-                                        NodeList nodeList = node.getElementsByTagName("dht");
-                                        for(int x = 0; x < nodeList.getLength(); x ++) {
-                                            if(nodeList.item(x).getFirstChild().getAttributes().getNamedItem("class").getNodeValue().equals("0")) {
-                                                jpegHuffmanTableListClass0.add((JPEGHuffmanTable)((IIOMetadataNode)nodeList.item(x).getFirstChild()).getUserObject());
-                                            }
-                                            else if(nodeList.item(x).getFirstChild().getAttributes().getNamedItem("class").getNodeValue().equals("1")) {
-                                                jpegHuffmanTableListClass1.add((JPEGHuffmanTable)((IIOMetadataNode)nodeList.item(x).getFirstChild()).getUserObject());
-                                            }
-                                        }
-                                    }
-
-                                    iwp.setEncodeTables(
-                                        jpegQTableList.toArray(new JPEGQTable[2]),
-                                        jpegHuffmanTableListClass0.toArray(new JPEGHuffmanTable[2]),
-                                        jpegHuffmanTableListClass1.toArray(new JPEGHuffmanTable[2])
-                                    );
-
-                                }
-
-                                String tileId = tileIdQueue.remove();
-                                
-                                final int[] imagePixels = new int[tileWidth * tileHeight];
-                                image.getRGB(0, 0, tileWidth, tileHeight, imagePixels, 0, tileWidth);
-                                if(!noRecolor) {
-                                    Arrays.parallelSetAll(imagePixels, i -> svsFile.lutUpsampledInt[imagePixels[i] & 0x00ffffff]);
-                                }
-                                image.setRGB(0, 0, tileWidth, tileHeight, imagePixels, 0, tileWidth);
+    ImageInputStream getJPEGStream(RecolorPipeline.Job job) {
+        byte[] jpegTables = jpegTablesMap.computeIfAbsent(job.tiffDir, x -> svsFile.getBytes(x.tagJPEGTablesOffsetInSvs, x.tagJPEGTablesOffsetInSvs + x.tagJPEGTablesLength));
+        TileBuffer jpegBuffer = jpegBuffers.get();
+        jpegBuffer.length = 0;
+        jpegBuffer.append(jpegTables, 0, jpegTables.length);
+        jpegBuffer.append(job.tileBuffer.bytes, 0, 2);
+        jpegBuffer.append(JPEG_APP14_SEGMENT, 0, JPEG_APP14_SEGMENT.length);
+        jpegBuffer.append(job.tileBuffer.bytes, 2, job.tileBuffer.length - 2);
+        return jpegBuffer.getImageInputStream();
+    }
 
-                                if(annotate) {
-                                    TIFFDir tiffDir = svsFile.tiffDirList.get(Integer.valueOf(tileId.split("\\.")[0]));
-                                    Graphics2D graphics = image.createGraphics();
-                                    graphics.setColor(Color.BLACK);
-                                    graphics.setStroke(new BasicStroke(5f));
-                                    graphics.drawLine(0, 0, 10, 10);
-                                    graphics.drawLine(0, tiffDir.tileHeight - 1, 10, tiffDir.tileHeight - 11);
-                                    graphics.drawLine(tiffDir.tileWidth - 1, tiffDir.tileHeight - 1, tiffDir.tileWidth - 11, tiffDir.tileHeight - 11);
-                                    graphics.drawLine(tiffDir.tileWidth - 1, 0, tiffDir.tileWidth - 11, 10);
-                                    graphics.setFont(new Font("TimesRoman", Font.BOLD, 30));
-                                    FontMetrics metrics = graphics.getFontMetrics();
-                                    graphics.drawString(tileId, 20, 1 * (metrics.getHeight() + 20));
-                                }
+    @Override
+    JPEGImageWriteParam getWriteParam(ImageWriter writer) {
+        JPEGImageWriteParam iwp = (JPEGImageWriteParam)writer.getDefaultWriteParam();
+        // Unless MODE_COPY_FROM_METADATA, tables will be created! With
+        // the AT2 SVS files, the JPEG tables are stored separately from
+        // tile bytes and the same JPEG tables are used for all tiles,
+        // to we don't want the JPEG tables in the tile data with an
+        // AT2 SVS.
+        iwp.setCompressionMode(MODE_COPY_FROM_METADATA);
+        return iwp;
+    }
 
-                                IIOMetadata imageMetadata = reader.getImageMetadata(imageIndex);
-                                IIOImage iioImage = new IIOImage(image, null, null);
-                                iioImage.setMetadata(imageMetadata);
-                                imageOutputStreamByteStream.reset();
-                                writer.write(null, iioImage, iwp);
-                                imageOutputStream.flush();
-                                // remove the APP14 segment
-                                byte[] imageOutputBytes = imageOutputStreamByteStream.toByteArray();
-                                byte[] imageOutputBytesNoApp14 = new byte[imageOutputBytes.length - 16];
-                                System.arraycopy(imageOutputBytes, 0, imageOutputBytesNoApp14, 0, 2);
-                                System.arraycopy(imageOutputBytes, 18, imageOutputBytesNoApp14, 2, imageOutputBytesNoApp14.length - 2);
-                                svsFile.recoloredTileBytesMap.put(tileId, imageOutputStreamByteStream.toByteArray());
+    @Override
+    String getAnnotation(RecolorPipeline.Job job) {
+        return String.format("%d.%d.%d", Tile.tiffDirIndex(job.tileKey), Tile.tileX(job.tileKey), Tile.tileY(job.tileKey));
+    }
 
-                                imageIndex++;
+    @Override
+    void decode(ImageReader reader, RecolorPipeline.Job job) throws IOException {
+        super.decode(reader, job);
+        if(!encodeTablesMap.containsKey(job.tiffDir)) {
+            encodeTablesMap.putIfAbsent(job.tiffDir, getEncodeTables(reader));
+        }
+    }
 
-                            }
+    @Override
+    void encode(Encoder encoder, RecolorPipeline.Job job) throws IOException {
+        // the tiles are encoded with the TIFF directory's original tables
+        EncodeTables encodeTables = encodeTablesMap.get(job.tiffDir);
+        encoder.iwp.setEncodeTables(encodeTables.qTables, encodeTables.dcHuffmanTables, encodeTables.acHuffmanTables);
+        super.encode(encoder, job);
+    }
 
-                        }
-                        catch(IOException e) {
-                            e.printStackTrace();
-                            System.exit(1);
-                        }
+    // the tables of the JPEG stream the reader last read
+    EncodeTables getEncodeTables(ImageReader reader) throws IOException {
 
-                    }    
+        IIOMetadataNode node = (IIOMetadataNode)reader.getStreamMetadata().getAsTree("javax_imageio_jpeg_stream_1.0");
 
-                });
-                
-                // the JPEG tables in the TIFF directories are different
-                outputStream.write(svsFile.getBytes(tiffDir.tagJPEGTablesOffsetInSvs, tiffDir.tagJPEGTablesOffsetInSvs + tiffDir.tagJPEGTablesLength));
+        List<JPEGQTable> jpegQTableList = new java.util.ArrayList<>();
+        {
+            NodeList nodeList = node.getElementsByTagName("dqt");
+            for(int x = 0; x < nodeList.getLength(); x ++) {
+                jpegQTableList.add((JPEGQTable)((IIOMetadataNode)nodeList.item(x).getFirstChild()).getUserObject());
+            }
+        }
 
-                for(int y = 0; y < tiffDir.tilesInSVSOrder.length; y++) {
-                    tileNo++;
-                    synchronized(svsFile.nextTileNo) {
-                        if(tileNo < svsFile.nextTileNo) {
-                            continue;
-                        }
-                        int actuallySkipped = 0;
-                        for(int a = y + 1; a < (int)Math.min(y + 1 + skip, tiffDir.tilesInSVSOrder.length); a++) {
-                            svsFile.recoloredTileBytesMap.put(tiffDir.tilesInSVSOrder[a].id, svsFile.getBytes(tiffDir.tilesInSVSOrder[a].offsetInSVS, tiffDir.tilesInSVSOrder[a].offsetInSVS + tiffDir.tilesInSVSOrder[a].length));
-                            actuallySkipped++;
-                        }
-                        svsFile.nextTileNo += actuallySkipped + 1;
-                    }
-                    if(!jpegStreamThread.isAlive()) {
-                        jpegStreamThread.start();
-                    }
-                    Tile tile = tiffDir.tilesInSVSOrder[y];
-                    tileIdQueue.add(tile.id);
-                    outputStream.write(svsFile.getBytes(tile.offsetInSVS, tile.offsetInSVS + 2));
-                    outputStream.write(JPEG_APP14_SEGMENT);
-                    outputStream.write(svsFile.getBytes(tile.offsetInSVS + 2, tile.offsetInSVS + tile.length));
+        List<JPEGHuffmanTable> jpegHuffmanTableListClass0 = new java.util.ArrayList<>();
+        List<JPEGHuffmanTable> jpegHuffmanTableListClass1 = new java.util.ArrayList<>();
+        {
+            NodeList nodeList = node.getElementsByTagName("dht");
+            for(int x = 0; x < nodeList.getLength(); x ++) {
+                if(nodeList.item(x).getFirstChild().getAttributes().getNamedItem("class").getNodeValue().equals("0")) {
+                    jpegHuffmanTableListClass0.add((JPEGHuffmanTable)((IIOMetadataNode)nodeList.item(x).getFirstChild()).getUserObject());
+                }
+                else if(nodeList.item(x).getFirstChild().getAttributes().getNamedItem("class").getNodeValue().equals("1")) {
+                    jpegHuffmanTableListClass1.add((JPEGHuffmanTable)((IIOMetadataNode)nodeList.item(x).getFirstChild()).getUserObject());
                 }
-
-                outputStream.flush();
-                outputStream.close();
-                jpegStreamThread.join(); // mucho importante, the decoder/encoder thread might be lagging
-
             }
-                
-        }
-        catch(Exception e) {
-            e.printStackTrace();
-            System.exit(1);
         }
-        
+
+        EncodeTables encodeTables = new EncodeTables();
+        encodeTables.qTables = jpegQTableList.toArray(new JPEGQTable[2]);
+        encodeTables.dcHuffmanTables = jpegHuffmanTableListClass0.toArray(new JPEGHuffmanTable[2]);
+        encodeTables.acHuffmanTables = jpegHuffmanTableListClass1.toArray(new JPEGHuffmanTable[2]);
+        return encodeTables;
+
     }
 
 }
@@ -27,16 +27,37 @@ package svsutil;
 import java.awt.color.ColorSpace;
 import java.awt.color.ICC_ColorSpace;
 import java.awt.color.ICC_Profile;
-import java.io.FileInputStream;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorConvertOp;
+import java.awt.image.ComponentColorModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferUShort;
+import java.awt.image.PixelInterleavedSampleModel;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+import java.io.EOFException;
+import java.io.File;
 import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.HashMap;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -48,11 +69,18 @@ public class SVSFile {
 
     static final Logger logger = Logger.getLogger(SVSFile.class.getName());
     
-    public static final int BUFFER_SIZE = 250000000;
+    // the SVS file is memory-mapped in windows of this size (the page cache,
+    // not the Java heap, holds the slide); edits go to copy-on-write pages of
+    // PAGE_SIZE bytes that overlay the read-only windows
+    public static final int BUFFER_SIZE = 0x10000000;
+    public static final int PAGE_SIZE = 0x00010000;
+    // in header-only mode, small reads go through a cache of this many pages
+    public static final int PAGE_CACHE_SIZE = 64;
     
     public static final int R = 0;
     public static final int G = 1;
     public static final int B = 2;
+    public static final int LUT_CHUNK_PLANES = 0x10; // R planes of the CLUT transformed at a time
 
     public static final long NO_MORE_TIFF_DIRECTORIES_OFFSET = 0x0000000000000000L;
     
@@ -62,37 +90,65 @@ public class SVSFile {
     public long osFirstHeaderOffset = -1;
     public int longLength = -1;
     
-    public List<byte[]> svsBytesList = new ArrayList<>();
+    public FileChannel svsFileChannel = null;
+    public File svsFileResized = null; // the temporary file mapped after a resize(), null = the original
+    public List<MappedByteBuffer> svsMappedBufferList = new ArrayList<>();
+    public byte[][] svsOverlayPages = null;
+    public BitSet dirtyPages = null; // pages edited while an SVSFileWriter streams, null = not tracked
+    public boolean headersOnly = false;
+    Map<Integer, byte[]> svsPageCache = null;
     public List<TIFFDir> tiffDirList = new ArrayList<>();
     public byte[] iccBytes = null;
 
     public boolean lutComputed = false;
-    public int[][][][] lutUpsampled = new int[0x100][0x100][0x100][3];
-    public int[] lutUpsampledInt = new int[0x100 * 0x100 * 0x100];
+    public int lutGridSize = 0; // 0 = every color is transformed exactly
+    public List<LutAdjustment> lutAdjustmentList = new ArrayList<>(); // folded into the CLUT by computeLut and loadLut
+    public int lutEngine = LutKernel.ENGINE_DIRECT;
+    public LutGrid lutGrid = null; // built by buildLutGrid for the grid engine
+    public int[] lutUpsampledInt = null; // packed 0xRRGGBB indexed by 0xRRGGBB, allocated by computeLut
 
-    Map<String, Tile> tileMap = new HashMap<>();
-    Map<String, byte[]> recoloredTileBytesMap = new ConcurrentHashMap<>();
+    public TileScheduler tileScheduler = null; // hands out the tiles to the recolor runners
+    public TileCollector tileCollector = null; // hands the recolored tiles over to the writer
+    public TileReadAhead tileReadAhead = null; // null = read tiles on demand
 
-    public Integer nextTileNo = 0;
+    public String cacheDirName = null; // null = no cache
+    public String lutKey = null; // key of the CLUT shared through LutRegistry, null = not shared
     
     public SVSFile(String svsFileName) throws FileNotFoundException, IOException, InterruptedException {
+        this(svsFileName, false, null);
+    }
 
-        this.svsFileName = svsFileName;
+    // with a cache directory, the TIFF directories are read from an index in
+    // that directory when one exists for this SVS file (see SVSFileIndex)
+    public SVSFile(String svsFileName, String cacheDirName) throws FileNotFoundException, IOException, InterruptedException {
+        this(svsFileName, false, cacheDirName);
+    }
+
+    // header-only mode is for callers that only need the TIFF directories and
+    // a few strips or tiles (e.g., extracting the label or macro); nothing is
+    // mapped, the TIFF directories are parsed with positional reads, and image
+    // data is read from the file on demand
+    public static SVSFile openHeadersOnly(String svsFileName) throws FileNotFoundException, IOException, InterruptedException {
+        return new SVSFile(svsFileName, true, null);
+    }
+
+    public static SVSFile openHeadersOnly(String svsFileName, String cacheDirName) throws FileNotFoundException, IOException, InterruptedException {
+        return new SVSFile(svsFileName, true, cacheDirName);
+    }
 
-        FileInputStream fis = new FileInputStream(svsFileName);
+    SVSFile(String svsFileName, boolean headersOnly, String cacheDirName) throws FileNotFoundException, IOException, InterruptedException {
 
-        byte[] svsBytes = new byte[BUFFER_SIZE];
-        int bytesRead = 0;
-        length = 0;
-        while((bytesRead = fis.read(svsBytes)) != -1) {
-            svsBytesList.add(svsBytes);
-            length += bytesRead;
-            svsBytes = new byte[BUFFER_SIZE];
+        this.svsFileName = svsFileName;
+        this.cacheDirName = cacheDirName;
+
+        if(headersOnly) {
+            open(FileChannel.open(Paths.get(svsFileName), StandardOpenOption.READ));
+            logger.log(Level.INFO, String.format("opened %d Mb from %s for header-only access", length / (1024 * 1024), svsFileName));
+        }
+        else {
+            map(FileChannel.open(Paths.get(svsFileName), StandardOpenOption.READ));
+            logger.log(Level.INFO, String.format("mapped %d Mb from %s into %d buffers", length / (1024 * 1024), svsFileName, svsMappedBufferList.size()));
         }
-        
-        fis.close();
-        
-        logger.log(Level.INFO, String.format("read %d Mb from %s into %d buffers", length / (1024 * 1024), svsFileName, svsBytesList.size()));
 
         if(getByte(2) == 0x2b) {
             osFirstHeaderOffset = 0x00000008;
@@ -104,8 +160,45 @@ public class SVSFile {
         }
         firstHeaderOffset = getBytesAsLong(osFirstHeaderOffset);
             
-        parseTIFFDirTags();
+        if(cacheDirName == null || !SVSFileIndex.read(this, cacheDirName)) {
+            parseTIFFDirTags();
+            if(cacheDirName != null) {
+                SVSFileIndex.write(this, cacheDirName);
+            }
+        }
+
+    }
+
+    // (re)points this object at a file, discarding any edits
+    void map(FileChannel fileChannel) throws IOException {
+        if(svsFileChannel != null) {
+            svsFileChannel.close(); // existing mappings remain valid until GC'd
+        }
+        svsFileChannel = fileChannel;
+        length = svsFileChannel.size();
+        headersOnly = false;
+        svsPageCache = null;
+        svsMappedBufferList = new ArrayList<>();
+        for(long x = 0; x < length; x += BUFFER_SIZE) {
+            MappedByteBuffer svsMappedBuffer = svsFileChannel.map(FileChannel.MapMode.READ_ONLY, x, Math.min(BUFFER_SIZE, length - x));
+            svsMappedBuffer.order(ByteOrder.LITTLE_ENDIAN); // TIFF
+            svsMappedBufferList.add(svsMappedBuffer);
+        }
+        svsOverlayPages = new byte[(int)((length + PAGE_SIZE - 1) / PAGE_SIZE)][];
+    }
 
+    // points this object at a file without mapping it (header-only mode)
+    void open(FileChannel fileChannel) throws IOException {
+        svsFileChannel = fileChannel;
+        length = svsFileChannel.size();
+        headersOnly = true;
+        svsPageCache = new LinkedHashMap<Integer, byte[]>(PAGE_CACHE_SIZE, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, byte[]> eldest) {
+                return size() > PAGE_CACHE_SIZE;
+            }
+        };
+        svsOverlayPages = new byte[(int)((length + PAGE_SIZE - 1) / PAGE_SIZE)][];
     }
 
     public void parseTIFFDirTags() {
@@ -124,40 +217,369 @@ public class SVSFile {
         }
     }
     
+    // parses the TIFF directories again from the current (possibly edited)
+    // bytes; a caller that rewrites offsets in the TIFF headers (e.g., new
+    // label strips) calls this before a later resize(), which relocates
+    // offsets from the parsed values
+    public void reparseTIFFDirTags() {
+        firstHeaderOffset = getBytesAsLong(osFirstHeaderOffset);
+        tiffDirList = new ArrayList<>();
+        parseTIFFDirTags();
+    }
+
     public void computeLut(int threads) throws InterruptedException {
-        // if you save the 3D LUT to a file (e.g., ".cube"), remember that the R
-        // component should change quickly and the B should change slowly; this
-        // uses the color management system built into the JVM, but if you want
-        // to compute the 3D LUT totally manually, look back at prior versions
-        // of this project in GitHub (this is far fewer lines of code and the
-        // 3D LUTs between the two approaches are basically identical)
+        computeLut(threads, 0);
+    }
+
+    // a grid size > 0 samples the ICC transform on a gridSize^3 grid and
+    // interpolates the rest of the CLUT (see computeLutFromGrid)
+    public void computeLut(int threads, int gridSize) throws InterruptedException {
+        lutGridSize = gridSize;
+        releaseLut();
+        // SVS files opened in the same JVM with the same ICC profile share one
+        // CLUT (see LutRegistry), which is only computed by the first of them
+        String key = LutCache.getKey(this);
+        synchronized(LutRegistry.getLock(key)) {
+            int[] lut = LutRegistry.acquire(key);
+            if(lut != null) {
+                logger.log(Level.INFO, String.format("using shared color lookup table (CLUT) %s", key));
+                lutUpsampledInt = lut;
+            }
+            else {
+                lutUpsampledInt = null;
+                computeLutTable(threads, gridSize);
+                lutUpsampledInt = LutRegistry.register(key, lutUpsampledInt);
+            }
+            lutKey = key;
+        }
+        lutComputed = true;
+    }
+
+    // gives the shared CLUT back to the registry, which may then evict it;
+    // the SVS file has no CLUT afterwards
+    public void releaseLut() {
+        if(lutKey != null) {
+            LutRegistry.release(lutKey);
+            lutKey = null;
+            lutUpsampledInt = null;
+            lutComputed = false;
+        }
+    }
+
+    void computeLutTable(int threads, int gridSize) throws InterruptedException {
+        // if you save the 3D LUT to a file (e.g., ".cube", see exportLut), the
+        // R component changes quickly and the B changes slowly; this uses the
+        // color management system built into the JVM, but if you want to
+        // compute the 3D LUT totally manually, look back at prior versions of
+        // this project in GitHub (this is far fewer lines of code and the 3D
+        // LUTs between the two approaches are basically identical)
+        // 64 Mb, so only allocated when a slide is actually recolored
+        if(lutUpsampledInt == null) {
+            lutUpsampledInt = new int[0x100 * 0x100 * 0x100];
+        }
+        if(cacheDirName != null && LutCache.read(this, cacheDirName)) {
+            lutComputed = true;
+            return;
+        }
+        if(gridSize > 0) {
+            computeLutFromGrid(threads, gridSize);
+            lutComputed = true;
+            if(cacheDirName != null) {
+                LutCache.write(this, cacheDirName);
+            }
+            return;
+        }
         logger.log(Level.INFO, String.format("computing 256x256x256 color lookup table (CLUT) in %d threads", threads));
-        class ComputeRunner implements Runnable {
-            public int start = -1;
-            public int skip = -1;
-            public ComputeRunner(int start, int skip) {
-                this.start = start;
-                this.skip = skip;
+        logAdjustments();
+        // the colors are transformed a chunk of R planes at a time, each
+        // chunk in a single ColorConvertOp call, by a fork-join pool
+        ForkJoinPool forkJoinPool = new ForkJoinPool(threads);
+        try {
+            List<Callable<Void>> chunkList = new ArrayList<>();
+            for(int r = 0; r < 0x100; r += LUT_CHUNK_PLANES) {
+                final int rStart = r;
+                chunkList.add(() -> {
+                    computeLutPlanes(rStart, LUT_CHUNK_PLANES);
+                    return null;
+                });
             }
-            @Override
-            public void run() {
-                ColorSpace colorSpace = new ICC_ColorSpace(ICC_Profile.getInstance(iccBytes));
-                for(int r = start; r < 0x100; r += skip) {
-                    for(int g = 0; g < 0x100; g++) {
-                        for(int b = 0; b < 0x100; b++) {
-                            float[] rgbTransformed = colorSpace.toRGB(new float[] { 1f * r / 0xff, 1f * g / 0xff, 1f * b / 0xff });
-                            lutUpsampled[r][g][b][R] = (int)(rgbTransformed[0] * 0xff);
-                            lutUpsampled[r][g][b][G] = (int)(rgbTransformed[1] * 0xff);
-                            lutUpsampled[r][g][b][B] = (int)(rgbTransformed[2] * 0xff);
-                            lutUpsampledInt[((r & 0x0000ff)) << 16 | ((g & 0x0000ff) << 8) | ((b & 0x0000ff) << 0)] = ((lutUpsampled[r][g][b][R] & 0x0000ff)) << 16 | ((lutUpsampled[r][g][b][G] & 0x0000ff) << 8) | ((lutUpsampled[r][g][b][B] & 0x0000ff) << 0);
+            for(Future<Void> chunk : forkJoinPool.invokeAll(chunkList)) {
+                chunk.get();
+            }
+        }
+        catch(ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        }
+        finally {
+            forkJoinPool.shutdown();
+        }
+        lutComputed = true;
+        if(cacheDirName != null) {
+            LutCache.write(this, cacheDirName);
+        }
+    }
+
+    // reads the CLUT from a .cube file instead of computing it from the ICC
+    // profile; a 256x256x256 .cube is read straight into the CLUT and a .cube
+    // of any other size is interpolated up to 256x256x256
+    public void loadLut(String cubeFileName, int threads) throws IOException, InterruptedException {
+        releaseLut();
+        logAdjustments();
+        if(lutUpsampledInt == null) {
+            lutUpsampledInt = new int[0x100 * 0x100 * 0x100];
+        }
+        lutComputed = false; // until the whole file has been read
+        CubeFile cubeFile = CubeFile.read(cubeFileName, lutUpsampledInt, lutAdjustmentList);
+        if(cubeFile.grid == null) {
+            logger.log(Level.INFO, String.format("read 256x256x256 color lookup table (CLUT) from .cube file %s", cubeFileName));
+        }
+        else {
+            logger.log(Level.INFO, String.format("computing 256x256x256 color lookup table (CLUT) from %dx%dx%d .cube file %s in %d threads", cubeFile.size, cubeFile.size, cubeFile.size, cubeFileName, threads));
+            // the values are rounded, so a table written by exportLut() reads
+            // back exactly
+            interpolateLut(cubeFile::get, cubeFile.size, 0.5f, threads);
+        }
+        lutComputed = true;
+    }
+
+    // maps a decoded tile through the CLUT in place; an 8-bit interleaved sRGB
+    // raster (which is what the JPEG reader decodes to) is mapped in its own
+    // bytes, anything else is copied to and from a TYPE_3BYTE_BGR image
+    public void applyLut(BufferedImage image) {
+        WritableRaster raster = image.getRaster();
+        if(
+            image.getColorModel() instanceof ComponentColorModel
+            && image.getColorModel().getColorSpace().isCS_sRGB()
+            && image.getColorModel().getNumComponents() == 3
+            && raster.getSampleModel() instanceof PixelInterleavedSampleModel
+            && raster.getDataBuffer() instanceof DataBufferByte
+            && raster.getDataBuffer().getNumBanks() == 1
+            && raster.getSampleModelTranslateX() == 0
+            && raster.getSampleModelTranslateY() == 0
+        ) {
+            PixelInterleavedSampleModel sampleModel = (PixelInterleavedSampleModel)raster.getSampleModel();
+            byte[] data = ((DataBufferByte)raster.getDataBuffer()).getData();
+            int offset = raster.getDataBuffer().getOffset();
+            int pixelStride = sampleModel.getPixelStride();
+            int scanlineStride = sampleModel.getScanlineStride();
+            int width = raster.getWidth();
+            int height = raster.getHeight();
+            if(scanlineStride == width * pixelStride) {
+                LutKernel.applyInterleaved(lutEngine, lutUpsampledInt, lutGrid, data, offset, width * height, pixelStride, sampleModel.getBandOffsets());
+            }
+            else {
+                for(int y = 0; y < height; y++) {
+                    LutKernel.applyInterleaved(lutEngine, lutUpsampledInt, lutGrid, data, offset + y * scanlineStride, width, pixelStride, sampleModel.getBandOffsets());
+                }
+            }
+        }
+        else {
+            BufferedImage imageBGR = new BufferedImage(image.getWidth(), image.getHeight(), BufferedImage.TYPE_3BYTE_BGR);
+            imageBGR.setRGB(0, 0, image.getWidth(), image.getHeight(), image.getRGB(0, 0, image.getWidth(), image.getHeight(), null, 0, image.getWidth()), 0, image.getWidth());
+            applyLut(imageBGR);
+            image.setRGB(0, 0, image.getWidth(), image.getHeight(), imageBGR.getRGB(0, 0, image.getWidth(), image.getHeight(), null, 0, image.getWidth()), 0, image.getWidth());
+        }
+    }
+
+    // samples the finished CLUT (after any adjustments) into the
+    // cache-resident grid used by the grid engine and reports its error
+    public void buildLutGrid() {
+        lutGrid = new LutGrid(lutUpsampledInt);
+        lutGrid.reportError(lutUpsampledInt);
+    }
+
+    void logAdjustments() {
+        if(!lutAdjustmentList.isEmpty()) {
+            logger.log(Level.INFO, String.format("folding adjustments into color lookup table (CLUT): %s", lutAdjustmentList));
+        }
+    }
+
+    public void exportLut(String cubeFileName) throws IOException {
+        CubeFile.write(cubeFileName, String.format("svsutil %s", (new File(svsFileName)).getName()), lutUpsampledInt);
+        logger.log(Level.INFO, String.format("wrote color lookup table (CLUT) to .cube file %s", cubeFileName));
+    }
+
+    // transforms every color of a run of R planes of the CLUT in one call to
+    // the JVM's color management system; the colors go through as 16-bit
+    // samples, which is exactly what ColorSpace.toRGB() does with one color,
+    // so the CLUT is identical to one built by calling toRGB() per color
+    void computeLutPlanes(int rStart, int rCount) {
+        WritableRaster rasterIn = Raster.createInterleavedRaster(DataBuffer.TYPE_USHORT, 0x100, 0x100 * rCount, 3, null);
+        WritableRaster rasterOut = Raster.createInterleavedRaster(DataBuffer.TYPE_USHORT, 0x100, 0x100 * rCount, 3, null);
+        short[] samplesIn = ((DataBufferUShort)rasterIn.getDataBuffer()).getData();
+        short[] samplesOut = ((DataBufferUShort)rasterOut.getDataBuffer()).getData();
+        int x = 0;
+        for(int r = rStart; r < rStart + rCount; r++) {
+            for(int g = 0; g < 0x100; g++) {
+                for(int b = 0; b < 0x100; b++) {
+                    samplesIn[x++] = (short)(r * 0x0101);
+                    samplesIn[x++] = (short)(g * 0x0101);
+                    samplesIn[x++] = (short)(b * 0x0101);
+                }
+            }
+        }
+        ColorSpace colorSpace = new ICC_ColorSpace(LutRegistry.getProfile(iccBytes));
+        new ColorConvertOp(colorSpace, ColorSpace.getInstance(ColorSpace.CS_sRGB), null).filter(rasterIn, rasterOut);
+        int lutOffset = rStart << 16;
+        if(lutAdjustmentList.isEmpty()) {
+            for(int y = 0; y < 0x100 * 0x100 * rCount; y++) {
+                int rgb = 0;
+                for(int component = 0; component < 3; component++) {
+                    rgb = (rgb << 8) | ((int)(((float)(samplesOut[y * 3 + component] & 0xffff)) / 65535.0f * 0xff) & 0x0000ff);
+                }
+                lutUpsampledInt[lutOffset + y] = rgb;
+            }
+        }
+        else {
+            // the adjustments are applied to the 16-bit output of the
+            // transform, so each entry is only rounded to 8 bits once
+            float[] rgbTransformed = new float[3];
+            for(int y = 0; y < 0x100 * 0x100 * rCount; y++) {
+                for(int component = 0; component < 3; component++) {
+                    rgbTransformed[component] = ((float)(samplesOut[y * 3 + component] & 0xffff)) / 65535.0f;
+                }
+                for(LutAdjustment lutAdjustment : lutAdjustmentList) {
+                    lutAdjustment.apply(rgbTransformed);
+                }
+                int rgb = 0;
+                for(int component = 0; component < 3; component++) {
+                    rgb = (rgb << 8) | ((int)(Math.min(1f, Math.max(0f, rgbTransformed[component])) * 0xff) & 0x0000ff);
+                }
+                lutUpsampledInt[lutOffset + y] = rgb;
+            }
+        }
+    }
+
+    // samples the ICC transform at the nodes of a gridSize^3 grid spanning the
+    // RGB cube and fills the 256x256x256 CLUT by tetrahedral interpolation
+    // between the nodes (as a CMM does with a CLUT in an ICC profile), so
+    // the transform is evaluated e.g. 35,937 times for a 33^3 grid instead of
+    // 16,777,216 times; the error against the exact transform is then
+    // measured on a sample of colors that fall between the nodes
+    void computeLutFromGrid(int threads, int gridSize) throws InterruptedException {
+        logger.log(Level.INFO, String.format("computing 256x256x256 color lookup table (CLUT) from a %dx%dx%d grid in %d threads", gridSize, gridSize, gridSize, threads));
+        logAdjustments();
+        final float[] grid = new float[gridSize * gridSize * gridSize * 3];
+        Thread[] computeThreads = new Thread[threads];
+        for(int x = 0; x < threads; x++) {
+            final int start = x;
+            computeThreads[x] = new Thread(() -> {
+                ColorSpace colorSpace = new ICC_ColorSpace(LutRegistry.getProfile(iccBytes));
+                for(int r = start; r < gridSize; r += threads) {
+                    for(int g = 0; g < gridSize; g++) {
+                        for(int b = 0; b < gridSize; b++) {
+                            float[] rgbTransformed = colorSpace.toRGB(new float[] { 1f * r / (gridSize - 1), 1f * g / (gridSize - 1), 1f * b / (gridSize - 1) });
+                            System.arraycopy(rgbTransformed, 0, grid, ((r * gridSize + g) * gridSize + b) * 3, 3);
                         }
                     }
                 }
+            });
+            computeThreads[x].start();
+        }
+        for(int x = 0; x < threads; x++) {
+            computeThreads[x].join();
+        }
+        interpolateLut(index -> grid[index], gridSize, 0f, threads);
+        // error against the exact transform, in 8-bit levels per component,
+        // on a 37x37x37 sample of colors (every 7th value, offset so that the
+        // colors fall between the nodes of the usual grids)
+        ColorSpace colorSpace = new ICC_ColorSpace(LutRegistry.getProfile(iccBytes));
+        int errorMax = 0;
+        long errorSum = 0;
+        long errorCount = 0;
+        for(int r = 3; r < 0x100; r += 7) {
+            for(int g = 3; g < 0x100; g += 7) {
+                for(int b = 3; b < 0x100; b += 7) {
+                    float[] rgbTransformed = colorSpace.toRGB(new float[] { 1f * r / 0xff, 1f * g / 0xff, 1f * b / 0xff });
+                    for(LutAdjustment lutAdjustment : lutAdjustmentList) {
+                        lutAdjustment.apply(rgbTransformed);
+                    }
+                    int rgb = lutUpsampledInt[(r << 16) | (g << 8) | b];
+                    for(int component = 0; component < 3; component++) {
+                        int error = Math.abs((int)(Math.min(1f, Math.max(0f, rgbTransformed[component])) * 0xff) - ((rgb >> (16 - component * 8)) & 0x0000ff));
+                        errorMax = Math.max(errorMax, error);
+                        errorSum += error;
+                        errorCount++;
+                    }
+                }
             }
         }
+        logger.log(Level.INFO, String.format("CLUT interpolation error against the exact transform over %d sampled colors: max = %d, mean = %5.3f (8-bit levels)", errorCount / 3, errorMax, 1.0 * errorSum / errorCount));
+    }
+
+    // a grid component value by its index, so that a grid can be held in
+    // floats (e.g., a sampled ICC transform) or more compactly (CubeFile)
+    interface GridValues {
+        float get(int index);
+    }
+
+    // fills the 256x256x256 CLUT by tetrahedral interpolation between the
+    // nodes of a gridSize^3 grid of transformed colors (0 - 1, RGB order,
+    // indexed by (r * gridSize + g) * gridSize + b); the adjustments are
+    // applied to each interpolated color and the rounding is then added to
+    // the 8-bit level of each component before it is truncated
+    void interpolateLut(GridValues grid, int gridSize, float rounding, int threads) throws InterruptedException {
+        // grid cell and position within the cell of each 8-bit component value
+        final int[] cellIndex = new int[0x100];
+        final float[] cellFraction = new float[0x100];
+        for(int v = 0; v < 0x100; v++) {
+            float position = 1f * v * (gridSize - 1) / 0xff;
+            cellIndex[v] = Math.min((int)position, gridSize - 2);
+            cellFraction[v] = position - cellIndex[v];
+        }
         Thread[] computeThreads = new Thread[threads];
         for(int x = 0; x < threads; x++) {
-            computeThreads[x] = new Thread(new ComputeRunner(x, threads));
+            final int start = x;
+            computeThreads[x] = new Thread(() -> {
+                // offsets in the grid of the corners of a cell, indexed by
+                // (r << 2) | (g << 1) | b
+                int[] corner = new int[8];
+                float[] rgbInterpolated = new float[3];
+                for(int c = 0; c < 8; c++) {
+                    corner[c] = ((((c >> 2) & 1) * gridSize + ((c >> 1) & 1)) * gridSize + (c & 1)) * 3;
+                }
+                for(int r = start; r < 0x100; r += threads) {
+                    for(int g = 0; g < 0x100; g++) {
+                        for(int b = 0; b < 0x100; b++) {
+                            int cell = ((cellIndex[r] * gridSize + cellIndex[g]) * gridSize + cellIndex[b]) * 3;
+                            float fr = cellFraction[r];
+                            float fg = cellFraction[g];
+                            float fb = cellFraction[b];
+                            // the tetrahedron containing the color runs from
+                            // corner 000 to corner 111 through the corners
+                            // reached by stepping along the largest, then
+                            // the second largest fraction
+                            int c1, c2;
+                            float f1, f2, f3;
+                            if(fr >= fg) {
+                                if(fg >= fb) { c1 = 4; c2 = 6; f1 = fr; f2 = fg; f3 = fb; }
+                                else if(fr >= fb) { c1 = 4; c2 = 5; f1 = fr; f2 = fb; f3 = fg; }
+                                else { c1 = 1; c2 = 5; f1 = fb; f2 = fr; f3 = fg; }
+                            }
+                            else {
+                                if(fr >= fb) { c1 = 2; c2 = 6; f1 = fg; f2 = fr; f3 = fb; }
+                                else if(fg >= fb) { c1 = 2; c2 = 3; f1 = fg; f2 = fb; f3 = fr; }
+                                else { c1 = 1; c2 = 3; f1 = fb; f2 = fg; f3 = fr; }
+                            }
+                            for(int component = 0; component < 3; component++) {
+                                float v0 = grid.get(cell + corner[0] + component);
+                                float v1 = grid.get(cell + corner[c1] + component);
+                                float v2 = grid.get(cell + corner[c2] + component);
+                                float v3 = grid.get(cell + corner[7] + component);
+                                rgbInterpolated[component] = v0 + f1 * (v1 - v0) + f2 * (v2 - v1) + f3 * (v3 - v2);
+                            }
+                            for(LutAdjustment lutAdjustment : lutAdjustmentList) {
+                                lutAdjustment.apply(rgbInterpolated);
+                            }
+                            int rgb = 0;
+                            for(int component = 0; component < 3; component++) {
+                                rgb = (rgb << 8) | ((int)(Math.min(1f, Math.max(0f, rgbInterpolated[component])) * 0xff + rounding) & 0x0000ff);
+                            }
+                            lutUpsampledInt[(r << 16) | (g << 8) | b] = rgb;
+                        }
+                    }
+                }
+            });
             computeThreads[x].start();
         }
         for(int x = 0; x < threads; x++) {
@@ -165,7 +587,7 @@ public class SVSFile {
         }
     }
 
-    public void resize(List<ResizeSegment> resizeSegmentList) {
+    public void resize(List<ResizeSegment> resizeSegmentList) throws IOException {
 
         if(resizeSegmentList.isEmpty()) {
             return;
@@ -174,191 +596,369 @@ public class SVSFile {
         logger.log(Level.INFO, String.format("resizing SVS file"));
 
         // 1. update offsets in TIFF headers and referenced tile offset arrays
+        relocateOffsets(resizeSegmentList);
+
+        // 2. remove/add bytes and reparse TIFF; the segments are sorted once
+        //    and the runs between them are copied whole by an SVSFileWriter
+        //    into a temporary file that then replaces the mapped original
         {
-            for(ResizeSegment resizeSegment : resizeSegmentList) {
-                resizeSegment.setEnd();
-                if(firstHeaderOffset >= resizeSegment.end) {
-                    setBytesToLong(osFirstHeaderOffset, getBytesAsLong(osFirstHeaderOffset) + resizeSegment.length);
+            List<ResizeSegment> resizeSegmentListSorted = new ArrayList<>(resizeSegmentList);
+            resizeSegmentListSorted.sort(Comparator.comparingLong(x -> x.start));
+            SVSFileWriter svsFileWriter = new SVSFileWriter(this);
+            long index = 0;
+            for(ResizeSegment resizeSegment : resizeSegmentListSorted) {
+                svsFileWriter.copy(index, resizeSegment.start);
+                index = Math.max(index, resizeSegment.start);
+                if(resizeSegment.length < 0) {
+                    logger.log(Level.INFO, String.format("collapsing %d bytes at position %d", Math.abs(resizeSegment.length), resizeSegment.start));
+                    index = Math.max(index, resizeSegment.start + Math.abs(resizeSegment.length));
                 }
-            }
-            for(int x = 0; x < tiffDirList.size(); x++) {
-                TIFFDir tiffDir = tiffDirList.get(x);
-                for(ResizeSegment resizeSegment : resizeSegmentList) {
-                    resizeSegment.setEnd();
-                    if(tiffDir.tagNextDirOffsetInSvs != NO_MORE_TIFF_DIRECTORIES_OFFSET && tiffDir.tagNextDirOffsetInSvs >= resizeSegment.end) {
-                        setBytesToLong(tiffDir.tagNextDirOffsetInSvsOffsetInSvs, getBytesAsLong(tiffDir.tagNextDirOffsetInSvsOffsetInSvs) + resizeSegment.length);
-                    }
-                    for(TIFFDir.TIFFTag tiffTag : tiffDir.tiffTagMap.values()) {
-                        if(tiffTag instanceof TIFFDir.TIFFTagLong) {
-                            TIFFDir.TIFFTagLong tiffTagLong = (TIFFDir.TIFFTagLong)tiffTag;
-                            if(tiffTagLong.name == 273) { // StripOffsets (non-tiled image data)
-                                if(tiffTagLong.elementValues[0] >= resizeSegment.end) {
-                                    setBytesToLong(tiffTagLong.osElementValues[0], getBytesAsLong(tiffTagLong.osElementValues[0]) + resizeSegment.length);
-                                }
-                            }
-                        }
-                        else if(tiffTag instanceof TIFFDir.TIFFTagLongArrayReference) {
-                            TIFFDir.TIFFTagLongArrayReference tiffTagLongArrayReference = (TIFFDir.TIFFTagLongArrayReference)tiffTag;
-                            if(tiffTagLongArrayReference.osElementValuesDereferenced[0] >= resizeSegment.end) {
-                                setBytesToLong(tiffTagLongArrayReference.osElementValue, getBytesAsLong(tiffTagLongArrayReference.osElementValue) + resizeSegment.length);
-                            }
-                            if(tiffTagLongArrayReference.name == 324 || tiffTagLongArrayReference.name == 273) { // TileOffsets (tiled image data) and StripOffsets (non-tiled image data)
-                                for(int y = 0; y < tiffTagLongArrayReference.elementValuesDereferenced.length; y++) {
-                                    if(tiffTagLongArrayReference.elementValuesDereferenced[y] >= resizeSegment.end) {
-                                        setBytesToLong(tiffTagLongArrayReference.osElementValuesDereferenced[y], getBytesAsLong(tiffTagLongArrayReference.osElementValuesDereferenced[y]) + resizeSegment.length);
-                                    }
-                                }
-                            }
-                        }
-                        else if(tiffTag instanceof TIFFDir.TIFFTagShortArrayReference) {
-                            TIFFDir.TIFFTagShortArrayReference tiffTagShortArrayReference = (TIFFDir.TIFFTagShortArrayReference)tiffTag;
-                            if(tiffTagShortArrayReference.osElementValuesDereferenced[0] >= resizeSegment.end) {
-                                setBytesToLong(tiffTagShortArrayReference.osElementValue, getBytesAsLong(tiffTagShortArrayReference.osElementValue) + resizeSegment.length);
-                            }
-                        }
-                        else if(tiffTag instanceof TIFFDir.TIFFTagASCIIReference) {
-                            TIFFDir.TIFFTagASCIIReference tiffTagASCIIReference = (TIFFDir.TIFFTagASCIIReference)tiffTag;
-                            if(tiffTagASCIIReference.osElementValueDereferenced >= resizeSegment.end) {
-                                setBytesToLong(tiffTagASCIIReference.osElementValue, getBytesAsLong(tiffTagASCIIReference.osElementValue) + resizeSegment.length);
-                            }
-                        }
-                        else if(tiffTag instanceof TIFFDir.TIFFTagUndefinedReference) {
-                            TIFFDir.TIFFTagUndefinedReference tiffTagUndefinedReference = (TIFFDir.TIFFTagUndefinedReference)tiffTag;
-                            if(tiffTagUndefinedReference.osElementValueDereferenced >= resizeSegment.end) {
-                                setBytesToLong(tiffTagUndefinedReference.osElementValue, getBytesAsLong(tiffTagUndefinedReference.osElementValue) + resizeSegment.length);
-                            }
-                        }
-                    }
+                else {
+                    logger.log(Level.INFO, String.format("expanding %d bytes at position %d", Math.abs(resizeSegment.length), resizeSegment.start));
+                    svsFileWriter.fill(resizeSegment.length);
                 }
             }
+            svsFileWriter.copy(index, length);
+            // the resized copy is as big as the slide, so it goes in the
+            // current directory with the output files rather than in a
+            // (possibly small) system temporary directory, and the copy
+            // from a previous resize() is deleted once it is unmapped
+            File svsFileResizedPrevious = svsFileResized;
+            svsFileResized = File.createTempFile("svsutil", ".svs", new File(".").getAbsoluteFile());
+            svsFileResized.deleteOnExit();
+            svsFileWriter.write(svsFileResized.getPath());
+            map(FileChannel.open(svsFileResized.toPath(), StandardOpenOption.READ));
+            if(svsFileResizedPrevious != null && !svsFileResizedPrevious.delete()) {
+                logger.log(Level.WARNING, String.format("could not delete %s, it will be deleted on exit", svsFileResizedPrevious.getPath()));
+            }
+            reparseTIFFDirTags();
         }
+        
+    }
 
-        // 2. remove/add bytes from/to buffers and reparse TIFF
-        {
-            long lengthResized = length + resizeSegmentList.stream().mapToLong(x -> x.length).sum();
-            long startMinimum = resizeSegmentList.stream().mapToLong(x -> x.start).min().getAsLong();
-            List<byte[]> svsBytesResizedList = new ArrayList<>();
-            for(int x = 0; x < (int)(startMinimum / BUFFER_SIZE); x++) {
-                svsBytesResizedList.add(svsBytesList.get(x));
+    // updates the offsets in the TIFF headers and in the referenced offset
+    // arrays for a list of resize segments without moving any bytes; the
+    // bytes are moved by resize() or by the layout plan of an SVSFileWriter
+    public void relocateOffsets(List<ResizeSegment> resizeSegmentList) {
+        Relocation relocation = new Relocation(resizeSegmentList);
+        relocateOffset(osFirstHeaderOffset, relocation.shift(firstHeaderOffset));
+        for(int x = 0; x < tiffDirList.size(); x++) {
+            TIFFDir tiffDir = tiffDirList.get(x);
+            if(tiffDir.tagNextDirOffsetInSvs != NO_MORE_TIFF_DIRECTORIES_OFFSET) {
+                relocateOffset(tiffDir.tagNextDirOffsetInSvsOffsetInSvs, relocation.shift(tiffDir.tagNextDirOffsetInSvs));
             }
-            for(int x = (int)(startMinimum / BUFFER_SIZE); x <= (int)(lengthResized / BUFFER_SIZE); x++) {
-                svsBytesResizedList.add(new byte[BUFFER_SIZE]);
-            }
-            long indexResized = (startMinimum / BUFFER_SIZE) * BUFFER_SIZE;
-            for(long x = (startMinimum / BUFFER_SIZE) * BUFFER_SIZE; x < length; x++) {
-                for(ResizeSegment resizeSegment : resizeSegmentList) {
-                    if(x == resizeSegment.start) {
-                        if(resizeSegment.length < 0) {
-                            logger.log(Level.INFO, String.format("collapsing %d bytes at position %d", Math.abs(resizeSegment.length), resizeSegment.start));
-                            x += Math.abs(resizeSegment.length);
-                            break;
-                        }
-                        else {
-                            logger.log(Level.INFO, String.format("expanding %d bytes at position %d", Math.abs(resizeSegment.length), resizeSegment.start));
-                            indexResized += resizeSegment.length;
-                            break;
-                        }
+            for(TIFFDir.TIFFTag tiffTag : tiffDir.tiffTagMap.values()) {
+                if(tiffTag instanceof TIFFDir.TIFFTagLong) {
+                    TIFFDir.TIFFTagLong tiffTagLong = (TIFFDir.TIFFTagLong)tiffTag;
+                    if(tiffTagLong.name == 273) { // StripOffsets (non-tiled image data)
+                        relocateOffset(tiffTagLong.osElementValues[0], relocation.shift(tiffTagLong.elementValues[0]));
                     }
                 }
-                svsBytesResizedList.get((int)(indexResized / BUFFER_SIZE))[(int)(indexResized % BUFFER_SIZE)] = getByte(x);
-                indexResized++;
+                else if(tiffTag instanceof TIFFDir.TIFFTagLongArrayReference) {
+                    TIFFDir.TIFFTagLongArrayReference tiffTagLongArrayReference = (TIFFDir.TIFFTagLongArrayReference)tiffTag;
+                    relocateOffset(tiffTagLongArrayReference.osElementValue, relocation.shift(tiffTagLongArrayReference.osElementValuesDereferenced[0]));
+                    if(tiffTagLongArrayReference.name == 324 || tiffTagLongArrayReference.name == 273) { // TileOffsets (tiled image data) and StripOffsets (non-tiled image data)
+                        relocateOffsetArray(tiffTagLongArrayReference.osElementValuesDereferenced[0], tiffTagLongArrayReference.elementValuesDereferenced, relocation);
+                    }
+                }
+                else if(tiffTag instanceof TIFFDir.TIFFTagShortArrayReference) {
+                    TIFFDir.TIFFTagShortArrayReference tiffTagShortArrayReference = (TIFFDir.TIFFTagShortArrayReference)tiffTag;
+                    relocateOffset(tiffTagShortArrayReference.osElementValue, relocation.shift(tiffTagShortArrayReference.osElementValuesDereferenced[0]));
+                }
+                else if(tiffTag instanceof TIFFDir.TIFFTagASCIIReference) {
+                    TIFFDir.TIFFTagASCIIReference tiffTagASCIIReference = (TIFFDir.TIFFTagASCIIReference)tiffTag;
+                    relocateOffset(tiffTagASCIIReference.osElementValue, relocation.shift(tiffTagASCIIReference.osElementValueDereferenced));
+                }
+                else if(tiffTag instanceof TIFFDir.TIFFTagUndefinedReference) {
+                    TIFFDir.TIFFTagUndefinedReference tiffTagUndefinedReference = (TIFFDir.TIFFTagUndefinedReference)tiffTag;
+                    relocateOffset(tiffTagUndefinedReference.osElementValue, relocation.shift(tiffTagUndefinedReference.osElementValueDereferenced));
+                }
             }
-            length = lengthResized;
-            svsBytesList = svsBytesResizedList;
-            tiffDirList = new ArrayList<>();
-            parseTIFFDirTags();
         }
-        
     }
 
-    public void write(String svsFileNameNew) throws FileNotFoundException, IOException {
-        FileOutputStream fos = new FileOutputStream(svsFileNameNew);
-        long bytesLeftToWrite = length;
-        for(byte[] svsBytes : svsBytesList) {
-            if(bytesLeftToWrite > BUFFER_SIZE) {
-                fos.write(svsBytes, 0, BUFFER_SIZE);
-                bytesLeftToWrite -= BUFFER_SIZE;
+    void relocateOffset(long index, long shift) {
+        if(shift != 0) {
+            setBytesToLong(index, getBytesAsLong(index) + shift);
+        }
+    }
+
+    // relocates a whole offset array (e.g., 100k tile offsets) with one read
+    // and one write; the shifts are computed from the offsets as parsed
+    void relocateOffsetArray(long index, long[] offsets, Relocation relocation) {
+        long[] shifts = new long[offsets.length];
+        boolean shifted = false;
+        for(int y = 0; y < offsets.length; y++) {
+            shifts[y] = relocation.shift(offsets[y]);
+            shifted |= shifts[y] != 0;
+        }
+        if(!shifted) {
+            return;
+        }
+        byte[] bytes = getBytes(index, index + (long)offsets.length * longLength);
+        ByteBuffer bb = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+        for(int y = 0; y < offsets.length; y++) {
+            if(longLength == 0x00000008) {
+                bb.putLong(y * 8, bb.getLong(y * 8) + shifts[y]);
             }
             else {
-                fos.write(svsBytes, 0, (int)bytesLeftToWrite);
+                bb.putInt(y * 4, (int)((bb.getInt(y * 4) & 0xffffffffL) + shifts[y]));
             }
         }
-        fos.close();
+        setBytes(index, index + bytes.length, bytes);
+    }
+
+    // where a byte at this offset ends up once the resize segments are applied
+    public static long relocatedOffset(long offset, List<ResizeSegment> resizeSegmentList) {
+        return offset + new Relocation(resizeSegmentList).shift(offset);
+    }
+
+    // the resize segments sorted by end, with the running total of their
+    // lengths, so an offset's shift is a binary search instead of a scan of
+    // every segment
+    static public class Relocation {
+        public long[] ends = null;
+        public long[] shifts = null; // shifts[i] = total length of segments 0..i-1
+        public Relocation(List<ResizeSegment> resizeSegmentList) {
+            List<ResizeSegment> resizeSegmentListSorted = new ArrayList<>(resizeSegmentList);
+            resizeSegmentListSorted.forEach(x -> x.setEnd());
+            resizeSegmentListSorted.sort(Comparator.comparingLong(x -> x.end));
+            ends = new long[resizeSegmentListSorted.size()];
+            shifts = new long[resizeSegmentListSorted.size() + 1];
+            for(int x = 0; x < ends.length; x++) {
+                ends[x] = resizeSegmentListSorted.get(x).end;
+                shifts[x + 1] = shifts[x] + resizeSegmentListSorted.get(x).length;
+            }
+        }
+        // total length of the segments ending at or before the offset
+        public long shift(long offset) {
+            int lo = 0;
+            int hi = ends.length;
+            while(lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if(ends[mid] <= offset) {
+                    lo = mid + 1;
+                }
+                else {
+                    hi = mid;
+                }
+            }
+            return shifts[lo];
+        }
+    }
+
+    public void write(String svsFileNameNew) throws FileNotFoundException, IOException {
+        SVSFileWriter svsFileWriter = new SVSFileWriter(this);
+        svsFileWriter.copy(0, length);
+        svsFileWriter.write(svsFileNameNew);
     }
     
     public byte[] getBytes(long indexStart, long indexEnd) {
-        if(indexStart / BUFFER_SIZE == (indexEnd - 1) / BUFFER_SIZE) {
-            return Arrays.copyOfRange(svsBytesList.get((int)(indexStart / BUFFER_SIZE)), (int)(indexStart % BUFFER_SIZE), ((int)(indexEnd % BUFFER_SIZE)) == 0 ? BUFFER_SIZE : ((int)(indexEnd % BUFFER_SIZE)));
-        }
-        else {
-            byte[] vals = new byte[(int)(indexEnd - indexStart)];
-            for(long x = indexStart; x < indexEnd; x++) {
-                vals[(int)(x - indexStart)] = svsBytesList.get((int)(x / BUFFER_SIZE))[(int)(x % BUFFER_SIZE)];
+        byte[] vals = new byte[(int)(indexEnd - indexStart)];
+        getBytes(indexStart, vals, 0, vals.length);
+        return vals;
+    }
+
+    public void getBytes(long index, byte[] vals, int offset, int count) {
+        while(count > 0) {
+            int pageIndex = (int)(index / PAGE_SIZE);
+            int offsetInPage = (int)(index % PAGE_SIZE);
+            int n = Math.min(count, PAGE_SIZE - offsetInPage);
+            if(svsOverlayPages[pageIndex] != null) {
+                System.arraycopy(svsOverlayPages[pageIndex], offsetInPage, vals, offset, n);
             }
-            return vals;
+            else {
+                // extend the read over clean pages in the same window
+                int offsetInBuffer = (int)(index % BUFFER_SIZE);
+                while(n < count && offsetInBuffer + n < BUFFER_SIZE && svsOverlayPages[(int)((index + n) / PAGE_SIZE)] == null) {
+                    n = Math.min(count, n + PAGE_SIZE);
+                }
+                n = Math.min(n, BUFFER_SIZE - offsetInBuffer);
+                readSource(index, vals, offset, n);
+            }
+            index += n;
+            offset += n;
+            count -= n;
         }
     }
     
     public void setBytes(long indexStart, long indexEnd, byte[] vals) {
-        for(long x = indexStart; x < indexEnd; x++) {
-            svsBytesList.get((int)(x / BUFFER_SIZE))[(int)(x % BUFFER_SIZE)] = vals[(int)(x - indexStart)];
+        long index = indexStart;
+        int offset = 0;
+        while(index < indexEnd) {
+            int offsetInPage = (int)(index % PAGE_SIZE);
+            int n = (int)Math.min(indexEnd - index, PAGE_SIZE - offsetInPage);
+            System.arraycopy(vals, offset, getOverlayPage(index), offsetInPage, n);
+            index += n;
+            offset += n;
         }
     }
 
     public byte getByte(long index) {
-        return svsBytesList.get((int)(index / BUFFER_SIZE))[(int)(index % BUFFER_SIZE)];
+        byte[] page = svsOverlayPages[(int)(index / PAGE_SIZE)];
+        if(page != null) {
+            return page[(int)(index % PAGE_SIZE)];
+        }
+        if(headersOnly) {
+            return getCachedPage((int)(index / PAGE_SIZE))[(int)(index % PAGE_SIZE)];
+        }
+        return svsMappedBufferList.get((int)(index / BUFFER_SIZE)).get((int)(index % BUFFER_SIZE));
     }
     
     public void setByte(long index, byte val) {
-        svsBytesList.get((int)(index / BUFFER_SIZE))[(int)(index % BUFFER_SIZE)] = val;
+        getOverlayPage(index)[(int)(index % PAGE_SIZE)] = val;
+    }
+
+    // reads unedited bytes from the mapping or, in header-only mode, from the
+    // page cache (small reads) or straight from the file (large reads)
+    void readSource(long index, byte[] vals, int offset, int count) {
+        if(!headersOnly) {
+            ByteBuffer bb = svsMappedBufferList.get((int)(index / BUFFER_SIZE)).duplicate();
+            ((Buffer)bb).position((int)(index % BUFFER_SIZE));
+            bb.get(vals, offset, count);
+        }
+        else if(count < PAGE_SIZE) {
+            while(count > 0) {
+                int offsetInPage = (int)(index % PAGE_SIZE);
+                int n = Math.min(count, PAGE_SIZE - offsetInPage);
+                System.arraycopy(getCachedPage((int)(index / PAGE_SIZE)), offsetInPage, vals, offset, n);
+                index += n;
+                offset += n;
+                count -= n;
+            }
+        }
+        else {
+            read(index, ByteBuffer.wrap(vals, offset, count));
+        }
+    }
+
+    byte[] getCachedPage(int pageIndex) {
+        synchronized(svsPageCache) {
+            byte[] page = svsPageCache.get(pageIndex);
+            if(page == null) {
+                page = new byte[PAGE_SIZE];
+                long pageStart = (long)pageIndex * PAGE_SIZE;
+                read(pageStart, ByteBuffer.wrap(page, 0, (int)Math.min(PAGE_SIZE, length - pageStart)));
+                svsPageCache.put(pageIndex, page);
+            }
+            return page;
+        }
+    }
+
+    void read(long index, ByteBuffer bb) {
+        try {
+            while(bb.hasRemaining()) {
+                int bytesRead = svsFileChannel.read(bb, index);
+                if(bytesRead < 0) {
+                    throw new EOFException(String.format("unexpected end of %s at position %d", svsFileName, index));
+                }
+                index += bytesRead;
+            }
+        }
+        catch(IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // copy-on-write: the first edit of a page copies it out of the mapping
+    byte[] getOverlayPage(long index) {
+        int pageIndex = (int)(index / PAGE_SIZE);
+        if(dirtyPages != null) {
+            dirtyPages.set(pageIndex);
+        }
+        if(svsOverlayPages[pageIndex] == null) {
+            byte[] page = new byte[PAGE_SIZE];
+            long pageStart = (long)pageIndex * PAGE_SIZE;
+            getBytes(pageStart, page, 0, (int)Math.min(PAGE_SIZE, length - pageStart));
+            svsOverlayPages[pageIndex] = page;
+        }
+        return svsOverlayPages[pageIndex];
     }
 
     public long getBytesAsLong(long index) {
         if(longLength == 0x00000008) {
-            byte[] bytes = getBytes(index, index + 7);
-            return
-                  ((((long)bytes[0]) & 0x00000000000000ffL) <<  0)
-                | ((((long)bytes[1]) & 0x00000000000000ffL) <<  8)
-                | ((((long)bytes[2]) & 0x00000000000000ffL) << 16)
-                | ((((long)bytes[3]) & 0x00000000000000ffL) << 24)
-                | ((((long)bytes[4]) & 0x00000000000000ffL) << 32)
-                | ((((long)bytes[5]) & 0x00000000000000ffL) << 40)
-                | ((((long)bytes[6]) & 0x00000000000000ffL) << 48);
+            return getLongLE(index) & 0x00ffffffffffffffL;
         }
         else {
-            byte[] bytes = getBytes(index, index + 7);
-            return
-                  ((((long)bytes[0]) & 0x00000000000000ffL) <<  0)
-                | ((((long)bytes[1]) & 0x00000000000000ffL) <<  8)
-                | ((((long)bytes[2]) & 0x00000000000000ffL) << 16)
-                | ((((long)bytes[3]) & 0x00000000000000ffL) << 24);
+            return getIntLE(index);
         }
     }
     
     public void setBytesToLong(long index, long val) {
         if(longLength == 0x00000008) {
-            byte[] bytes = new byte[] {
-                (byte)(((val) & 0x00000000000000ffL) >>  0),
-                (byte)(((val) & 0x000000000000ff00L) >>  8),
-                (byte)(((val) & 0x0000000000ff0000L) >> 16),
-                (byte)(((val) & 0x00000000ff000000L) >> 24),
-                (byte)(((val) & 0x000000ff00000000L) >> 32),
-                (byte)(((val) & 0x0000ff0000000000L) >> 40),
-                (byte)(((val) & 0x00ff000000000000L) >> 48)
-            };
-            setBytes(index, index + 7, bytes);
+            setLE(index, val, 7);
         }
         else {
-            byte[] bytes = new byte[] {
-                (byte)(((val) & 0x00000000000000ffL) >>  0),
-                (byte)(((val) & 0x000000000000ff00L) >>  8),
-                (byte)(((val) & 0x0000000000ff0000L) >> 16),
-                (byte)(((val) & 0x00000000ff000000L) >> 24),
-            };
-            setBytes(index, index + 4, bytes);
+            setLE(index, val, 4);
         }
     }
-    
+
+    // little-endian (TIFF) primitive accessors; values in an unedited part of
+    // a mapped window are read through the window's little-endian view and
+    // everything else is assembled byte by byte, so no byte[] is allocated
+    // per value; shorts and ints are unsigned
+    public int getShortLE(long index) {
+        ByteBuffer bb = getSourceWindow(index, 2);
+        if(bb != null) {
+            return bb.getShort((int)(index % BUFFER_SIZE)) & 0xffff;
+        }
+        return (int)getLE(index, 2);
+    }
+
+    public long getIntLE(long index) {
+        ByteBuffer bb = getSourceWindow(index, 4);
+        if(bb != null) {
+            return bb.getInt((int)(index % BUFFER_SIZE)) & 0xffffffffL;
+        }
+        return getLE(index, 4);
+    }
+
+    public long getLongLE(long index) {
+        ByteBuffer bb = getSourceWindow(index, 8);
+        if(bb != null) {
+            return bb.getLong((int)(index % BUFFER_SIZE));
+        }
+        return getLE(index, 8);
+    }
+
+    public void setShortLE(long index, int val) {
+        setLE(index, val, 2);
+    }
+
+    public void setIntLE(long index, long val) {
+        setLE(index, val, 4);
+    }
+
+    public void setLongLE(long index, long val) {
+        setLE(index, val, 8);
+    }
+
+    // the mapped window holding these bytes, or null if they are edited,
+    // straddle two windows or the file isn't mapped (header-only mode)
+    ByteBuffer getSourceWindow(long index, int count) {
+        if(headersOnly || index / BUFFER_SIZE != (index + count - 1) / BUFFER_SIZE) {
+            return null;
+        }
+        if(svsOverlayPages[(int)(index / PAGE_SIZE)] != null || svsOverlayPages[(int)((index + count - 1) / PAGE_SIZE)] != null) {
+            return null;
+        }
+        return svsMappedBufferList.get((int)(index / BUFFER_SIZE));
+    }
+
+    long getLE(long index, int count) {
+        long val = 0;
+        for(int x = count - 1; x >= 0; x--) {
+            val = (val << 8) | (getByte(index + x) & 0xffL);
+        }
+        return val;
+    }
+
+    void setLE(long index, long val, int count) {
+        for(int x = 0; x < count; x++) {
+            setByte(index + x, (byte)(val >>> (8 * x)));
+        }
+    }
+
     static public class ResizeSegment {
         public long start = -1;
         public long length = -1; // negative = compress / positive = expand
@@ -0,0 +1,321 @@
+/**
+ * MIT License
+ *
+ * Copyright (c) 2022 Geoffrey H. Smith
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package svsutil;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * A TIFF directory index is a binary sidecar file that holds everything
+ * parsed out of an SVS file's TIFF directories (the IFD chain, the tags and
+ * their positions, and the tile offset and length arrays). It lives in a
+ * cache directory and is keyed by the SVS file's size, modification time and
+ * a CRC of its first page, so reopening an unchanged SVS file maps the index
+ * and skips parsing entirely. A stale or unreadable index is simply ignored
+ * and rewritten.
+ * 
+ * @author geoffrey.smith@emory.edu
+ */
+public class SVSFileIndex {
+
+    static final Logger logger = Logger.getLogger(SVSFileIndex.class.getName());
+
+    static final long MAGIC = 0x5356535554494458L; // "SVSUTIDX"
+    static final int VERSION = 1;
+
+    static final byte TAG_LONG = 1;
+    static final byte TAG_LONG_ARRAY_REFERENCE = 2;
+    static final byte TAG_SHORT = 3;
+    static final byte TAG_SHORT_ARRAY_REFERENCE = 4;
+    static final byte TAG_ASCII_REFERENCE = 5;
+    static final byte TAG_UNDEFINED_REFERENCE = 6;
+
+    // <name>.<CRC32 of the canonical path>.idx, so slides with the same name
+    // in different directories have their own index
+    public static File getIndexFile(SVSFile svsFile, String cacheDirName) {
+        File file = new File(svsFile.svsFileName);
+        String path;
+        try {
+            path = file.getCanonicalPath();
+        }
+        catch(IOException e) {
+            path = file.getAbsolutePath();
+        }
+        CRC32 crc32 = new CRC32();
+        crc32.update(path.getBytes(StandardCharsets.UTF_8));
+        return new File(cacheDirName, String.format("%s.%08x.idx", file.getName(), crc32.getValue()));
+    }
+
+    // reads the TIFF directories from the index, returns false if there is no
+    // valid index for this SVS file
+    public static boolean read(SVSFile svsFile, String cacheDirName) {
+        File indexFile = getIndexFile(svsFile, cacheDirName);
+        if(!indexFile.exists()) {
+            return false;
+        }
+        try(FileChannel fileChannel = FileChannel.open(indexFile.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer bb = fileChannel.map(FileChannel.MapMode.READ_ONLY, 0, fileChannel.size());
+            if(
+                   bb.getLong() != MAGIC
+                || bb.getInt() != VERSION
+                || bb.getLong() != svsFile.length
+                || bb.getLong() != getModifiedTime(svsFile)
+                || bb.getLong() != getHeaderCRC(svsFile)
+            ) {
+                logger.log(Level.INFO, String.format("TIFF directory index %s is stale", indexFile.getPath()));
+                return false;
+            }
+            List<TIFFDir> tiffDirList = new ArrayList<>();
+            int tiffDirCount = bb.getInt();
+            for(int x = 0; x < tiffDirCount; x++) {
+                TIFFDir tiffDir = new TIFFDir(String.valueOf(x));
+                tiffDir.offsetInSvs = bb.getLong();
+                tiffDir.tagNumberOfTags = bb.getInt();
+                tiffDir.tagNextDirOffsetInSvs = bb.getLong();
+                tiffDir.tagNextDirOffsetInSvsOffsetInSvs = bb.getLong();
+                int tagCount = bb.getInt();
+                for(int y = 0; y < tagCount; y++) {
+                    byte kind = bb.get();
+                    TIFFDir.TIFFTag tiffTag = null;
+                    switch(kind) {
+                        case TAG_LONG: {
+                            TIFFDir.TIFFTagLong tiffTagLong = tiffDir.new TIFFTagLong();
+                            tiffTagLong.elementValues = getLongs(bb);
+                            tiffTagLong.osElementValues = getLongs(bb);
+                            tiffTag = tiffTagLong;
+                            break;
+                        }
+                        case TAG_LONG_ARRAY_REFERENCE: {
+                            TIFFDir.TIFFTagLongArrayReference tiffTagLongArrayReference = tiffDir.new TIFFTagLongArrayReference();
+                            tiffTagLongArrayReference.osElementValue = bb.getLong();
+                            tiffTagLongArrayReference.elementValuesDereferenced = getLongs(bb);
+                            tiffTagLongArrayReference.osElementValuesDereferenced = getLongs(bb);
+                            tiffTag = tiffTagLongArrayReference;
+                            break;
+                        }
+                        case TAG_SHORT: {
+                            TIFFDir.TIFFTagShort tiffTagShort = tiffDir.new TIFFTagShort();
+                            tiffTagShort.elementValues = getInts(bb);
+                            tiffTagShort.osElementValues = getLongs(bb);
+                            tiffTag = tiffTagShort;
+                            break;
+                        }
+                        case TAG_SHORT_ARRAY_REFERENCE: {
+                            TIFFDir.TIFFTagShortArrayReference tiffTagShortArrayReference = tiffDir.new TIFFTagShortArrayReference();
+                            tiffTagShortArrayReference.osElementValue = bb.getLong();
+                            tiffTagShortArrayReference.elementValuesDereferenced = getInts(bb);
+                            tiffTagShortArrayReference.osElementValuesDereferenced = getLongs(bb);
+                            tiffTag = tiffTagShortArrayReference;
+                            break;
+                        }
+                        case TAG_ASCII_REFERENCE: {
+                            TIFFDir.TIFFTagASCIIReference tiffTagASCIIReference = tiffDir.new TIFFTagASCIIReference();
+                            tiffTagASCIIReference.osElementValue = bb.getLong();
+                            tiffTagASCIIReference.osElementValueDereferenced = bb.getLong();
+                            tiffTagASCIIReference.elementValueDereferenced = new String(getBytes(bb));
+                            tiffTag = tiffTagASCIIReference;
+                            break;
+                        }
+                        case TAG_UNDEFINED_REFERENCE: {
+                            TIFFDir.TIFFTagUndefinedReference tiffTagUndefinedReference = tiffDir.new TIFFTagUndefinedReference();
+                            tiffTagUndefinedReference.osElementValue = bb.getLong();
+                            tiffTagUndefinedReference.osElementValueDereferenced = bb.getLong();
+                            tiffTagUndefinedReference.elementValuesDereferenced = getBytes(bb);
+                            tiffTag = tiffTagUndefinedReference;
+                            break;
+                        }
+                        default: {
+                            logger.log(Level.WARNING, String.format("TIFF directory index %s is corrupt", indexFile.getPath()));
+                            return false;
+                        }
+                    }
+                    tiffTag.name = bb.getInt();
+                    tiffTag.dataType = bb.getInt();
+                    tiffTag.length = bb.getInt();
+                    tiffTag.osName = bb.getLong();
+                    tiffTag.osDataType = bb.getLong();
+                    tiffTag.osLength = bb.getLong();
+                    tiffDir.tiffTagMap.put(tiffTag.name, tiffTag);
+                }
+                tiffDir.indexTags();
+                tiffDirList.add(tiffDir);
+            }
+            svsFile.tiffDirList = tiffDirList;
+            svsFile.iccBytes = svsFile.getBytes(tiffDirList.get(0).tagICCOffsetInSvs, tiffDirList.get(0).tagICCOffsetInSvs + tiffDirList.get(0).tagICCLength);
+            logger.log(Level.INFO, String.format("read %d TIFF directories from index %s", tiffDirList.size(), indexFile.getPath()));
+            return true;
+        }
+        catch(IOException | RuntimeException e) {
+            logger.log(Level.WARNING, String.format("error reading TIFF directory index %s: %s", indexFile.getPath(), e));
+            return false;
+        }
+    }
+
+    // writes the index for the SVS file's TIFF directories as parsed; the
+    // index is only a cache, so failing to write it is not an error
+    public static void write(SVSFile svsFile, String cacheDirName) {
+        File indexFile = getIndexFile(svsFile, cacheDirName);
+        try {
+            indexFile.getParentFile().mkdirs();
+            File indexFileTemp = File.createTempFile(indexFile.getName(), ".tmp", indexFile.getParentFile());
+            try(DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(indexFileTemp), SVSFile.PAGE_SIZE))) {
+                dos.writeLong(MAGIC);
+                dos.writeInt(VERSION);
+                dos.writeLong(svsFile.length);
+                dos.writeLong(getModifiedTime(svsFile));
+                dos.writeLong(getHeaderCRC(svsFile));
+                dos.writeInt(svsFile.tiffDirList.size());
+                for(TIFFDir tiffDir : svsFile.tiffDirList) {
+                    dos.writeLong(tiffDir.offsetInSvs);
+                    dos.writeInt(tiffDir.tagNumberOfTags);
+                    dos.writeLong(tiffDir.tagNextDirOffsetInSvs);
+                    dos.writeLong(tiffDir.tagNextDirOffsetInSvsOffsetInSvs);
+                    dos.writeInt(tiffDir.tiffTagMap.size());
+                    for(TIFFDir.TIFFTag tiffTag : tiffDir.tiffTagMap.values()) {
+                        if(tiffTag instanceof TIFFDir.TIFFTagLong) {
+                            TIFFDir.TIFFTagLong tiffTagLong = (TIFFDir.TIFFTagLong)tiffTag;
+                            dos.writeByte(TAG_LONG);
+                            putLongs(dos, tiffTagLong.elementValues);
+                            putLongs(dos, tiffTagLong.osElementValues);
+                        }
+                        else if(tiffTag instanceof TIFFDir.TIFFTagLongArrayReference) {
+                            TIFFDir.TIFFTagLongArrayReference tiffTagLongArrayReference = (TIFFDir.TIFFTagLongArrayReference)tiffTag;
+                            dos.writeByte(TAG_LONG_ARRAY_REFERENCE);
+                            dos.writeLong(tiffTagLongArrayReference.osElementValue);
+                            putLongs(dos, tiffTagLongArrayReference.elementValuesDereferenced);
+                            putLongs(dos, tiffTagLongArrayReference.osElementValuesDereferenced);
+                        }
+                        else if(tiffTag instanceof TIFFDir.TIFFTagShort) {
+                            TIFFDir.TIFFTagShort tiffTagShort = (TIFFDir.TIFFTagShort)tiffTag;
+                            dos.writeByte(TAG_SHORT);
+                            putInts(dos, tiffTagShort.elementValues);
+                            putLongs(dos, tiffTagShort.osElementValues);
+                        }
+                        else if(tiffTag instanceof TIFFDir.TIFFTagShortArrayReference) {
+                            TIFFDir.TIFFTagShortArrayReference tiffTagShortArrayReference = (TIFFDir.TIFFTagShortArrayReference)tiffTag;
+                            dos.writeByte(TAG_SHORT_ARRAY_REFERENCE);
+                            dos.writeLong(tiffTagShortArrayReference.osElementValue);
+                            putInts(dos, tiffTagShortArrayReference.elementValuesDereferenced);
+                            putLongs(dos, tiffTagShortArrayReference.osElementValuesDereferenced);
+                        }
+                        else if(tiffTag instanceof TIFFDir.TIFFTagASCIIReference) {
+                            TIFFDir.TIFFTagASCIIReference tiffTagASCIIReference = (TIFFDir.TIFFTagASCIIReference)tiffTag;
+                            dos.writeByte(TAG_ASCII_REFERENCE);
+                            dos.writeLong(tiffTagASCIIReference.osElementValue);
+                            dos.writeLong(tiffTagASCIIReference.osElementValueDereferenced);
+                            // the raw bytes, so the string decodes exactly as it did when parsed
+                            putBytes(dos, svsFile.getBytes(tiffTagASCIIReference.osElementValueDereferenced, tiffTagASCIIReference.osElementValueDereferenced + tiffTagASCIIReference.length));
+                        }
+                        else if(tiffTag instanceof TIFFDir.TIFFTagUndefinedReference) {
+                            TIFFDir.TIFFTagUndefinedReference tiffTagUndefinedReference = (TIFFDir.TIFFTagUndefinedReference)tiffTag;
+                            dos.writeByte(TAG_UNDEFINED_REFERENCE);
+                            dos.writeLong(tiffTagUndefinedReference.osElementValue);
+                            dos.writeLong(tiffTagUndefinedReference.osElementValueDereferenced);
+                            putBytes(dos, tiffTagUndefinedReference.elementValuesDereferenced);
+                        }
+                        dos.writeInt(tiffTag.name);
+                        dos.writeInt(tiffTag.dataType);
+                        dos.writeInt(tiffTag.length);
+                        dos.writeLong(tiffTag.osName);
+                        dos.writeLong(tiffTag.osDataType);
+                        dos.writeLong(tiffTag.osLength);
+                    }
+                }
+            }
+            Files.move(indexFileTemp.toPath(), indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            logger.log(Level.INFO, String.format("wrote TIFF directory index %s", indexFile.getPath()));
+        }
+        catch(IOException e) {
+            logger.log(Level.WARNING, String.format("error writing TIFF directory index %s: %s", indexFile.getPath(), e));
+        }
+    }
+
+    static long getModifiedTime(SVSFile svsFile) throws IOException {
+        return Files.getLastModifiedTime(Paths.get(svsFile.svsFileName)).toMillis();
+    }
+
+    static long getHeaderCRC(SVSFile svsFile) {
+        CRC32 crc = new CRC32();
+        crc.update(svsFile.getBytes(0, Math.min(SVSFile.PAGE_SIZE, svsFile.length)));
+        return crc.getValue();
+    }
+
+    static long[] getLongs(ByteBuffer bb) {
+        long[] vals = new long[bb.getInt()];
+        bb.asLongBuffer().get(vals);
+        ((Buffer)bb).position(bb.position() + vals.length * 8);
+        return vals;
+    }
+
+    static int[] getInts(ByteBuffer bb) {
+        int[] vals = new int[bb.getInt()];
+        bb.asIntBuffer().get(vals);
+        ((Buffer)bb).position(bb.position() + vals.length * 4);
+        return vals;
+    }
+
+    static byte[] getBytes(ByteBuffer bb) {
+        byte[] vals = new byte[bb.getInt()];
+        bb.get(vals);
+        return vals;
+    }
+
+    static void putLongs(DataOutputStream dos, long[] vals) throws IOException {
+        dos.writeInt(vals.length);
+        for(long val : vals) {
+            dos.writeLong(val);
+        }
+    }
+
+    static void putInts(DataOutputStream dos, int[] vals) throws IOException {
+        dos.writeInt(vals.length);
+        for(int val : vals) {
+            dos.writeInt(val);
+        }
+    }
+
+    static void putBytes(DataOutputStream dos, byte[] vals) throws IOException {
+        dos.writeInt(vals.length);
+        dos.write(vals);
+    }
+
+}
@@ -0,0 +1,257 @@
+/**
+ * MIT License
+ *
+ * Copyright (c) 2022 Geoffrey H. Smith
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package svsutil;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Writes an SVS file from a layout plan, which is an ordered list of segments.
+ * A copy segment is a range of the (possibly edited) source SVS file; the
+ * unedited parts of the range go straight from the source file to the output
+ * file with FileChannel.transferTo and never pass through the Java heap. A
+ * replace segment is a sequence of byte arrays (e.g., recolored tiles) that
+ * are written as the iterator hands them over, so they don't have to be
+ * patched into the source SVS file first. A fill segment is a run of zero
+ * bytes (e.g., room made for a larger label).
+ * 
+ * The plan can also be streamed: after open(), flush() writes the plan so
+ * far and write() appends bytes directly, so a caller can write parts of
+ * the new file before it knows what comes after them (e.g., recolored
+ * tiles as they are finished). Edits to the source SVS file made after the
+ * edited bytes were written (e.g., the tile offsets of the tiles just
+ * written) are caught up by rewriteDirtyPages(), which writes the edited
+ * pages again at their positions in the new file.
+ * 
+ * The new file is written under a temporary name in the same directory and
+ * only renamed once close() has finished it, so that a run that fails (any
+ * thread may end the JVM with System.exit) leaves no partial file under the
+ * new name; a shutdown hook deletes the temporary file if the JVM exits
+ * first.
+ * 
+ * @author geoffrey.smith@emory.edu
+ */
+public class SVSFileWriter {
+
+    static final Logger logger = Logger.getLogger(SVSFileWriter.class.getName());
+
+    public SVSFile svsFile = null;
+    public List<Segment> plan = new ArrayList<>();
+
+    FileChannel fileChannel = null;
+    String svsFileNameNew = null;
+    File svsFileTemp = null;
+    Thread deleteHook = null; // deletes the temporary file if the JVM exits before close()
+    List<long[]> copiedList = new ArrayList<>(); // start, end and position in the new file of each copy segment written
+
+    public SVSFileWriter(SVSFile svsFile) {
+        this.svsFile = svsFile;
+    }
+
+    public void copy(long indexStart, long indexEnd) {
+        if(indexEnd > indexStart) {
+            plan.add(new CopySegment(indexStart, indexEnd));
+        }
+    }
+
+    public void replace(Iterator<byte[]> bytesIterator) {
+        plan.add(new ReplaceSegment(bytesIterator));
+    }
+
+    public void fill(long count) {
+        if(count > 0) {
+            plan.add(new FillSegment(count));
+        }
+    }
+
+    public void write(String svsFileNameNew) throws FileNotFoundException, IOException {
+        open(svsFileNameNew);
+        flush();
+        close();
+    }
+
+    public void open(String svsFileNameNew) throws FileNotFoundException, IOException {
+        this.svsFileNameNew = svsFileNameNew;
+        File svsFileNew = new File(svsFileNameNew).getAbsoluteFile();
+        svsFileTemp = File.createTempFile("." + svsFileNew.getName() + ".", ".tmp", svsFileNew.getParentFile());
+        final File svsFileTempDeleted = svsFileTemp;
+        deleteHook = new Thread(() -> svsFileTempDeleted.delete());
+        Runtime.getRuntime().addShutdownHook(deleteHook);
+        fileChannel = new FileOutputStream(svsFileTemp).getChannel();
+        svsFile.dirtyPages = new BitSet();
+    }
+
+    // writes the plan so far
+    public void flush() throws IOException {
+        for(Segment segment : plan) {
+            segment.write(fileChannel);
+        }
+        plan.clear();
+    }
+
+    public void write(byte[] bytes, int offset, int count) throws IOException {
+        ByteBuffer bb = ByteBuffer.wrap(bytes, offset, count);
+        while(bb.hasRemaining()) {
+            fileChannel.write(bb);
+        }
+    }
+
+    public long position() throws IOException {
+        return fileChannel.position();
+    }
+
+    // writes the pages of the source SVS file edited since the last call
+    // again, where they have already been copied to the new file
+    public void rewriteDirtyPages() throws IOException {
+        BitSet dirtyPages = svsFile.dirtyPages;
+        for(int pageIndex = dirtyPages.nextSetBit(0); pageIndex >= 0; pageIndex = dirtyPages.nextSetBit(pageIndex + 1)) {
+            long pageStart = (long)pageIndex * SVSFile.PAGE_SIZE;
+            for(long[] copied : copiedList) {
+                long start = Math.max(pageStart, copied[0]);
+                long end = Math.min(pageStart + SVSFile.PAGE_SIZE, copied[1]);
+                if(start < end) {
+                    ByteBuffer bb = ByteBuffer.wrap(svsFile.svsOverlayPages[pageIndex], (int)(start - pageStart), (int)(end - start));
+                    long position = copied[2] + (start - copied[0]);
+                    while(bb.hasRemaining()) {
+                        position += fileChannel.write(bb, position);
+                    }
+                }
+            }
+        }
+        dirtyPages.clear();
+    }
+
+    public void close() throws IOException {
+        flush();
+        rewriteDirtyPages();
+        logger.log(Level.INFO, String.format("wrote %d Mb to %s", fileChannel.position() / (1024 * 1024), svsFileNameNew));
+        fileChannel.close();
+        fileChannel = null;
+        svsFile.dirtyPages = null;
+        Files.move(svsFileTemp.toPath(), Paths.get(svsFileNameNew), StandardCopyOption.REPLACE_EXISTING);
+        Runtime.getRuntime().removeShutdownHook(deleteHook);
+    }
+
+    // abandons the new file
+    public void delete() throws IOException {
+        fileChannel.close();
+        fileChannel = null;
+        svsFile.dirtyPages = null;
+        svsFileTemp.delete();
+        Runtime.getRuntime().removeShutdownHook(deleteHook);
+    }
+
+    public abstract class Segment {
+        abstract void write(FileChannel fileChannel) throws IOException;
+    }
+
+    public class CopySegment extends Segment {
+        public long indexStart = -1;
+        public long indexEnd = -1;
+        public CopySegment(long indexStart, long indexEnd) {
+            this.indexStart = indexStart;
+            this.indexEnd = indexEnd;
+        }
+        @Override
+        void write(FileChannel fileChannel) throws IOException {
+            copiedList.add(new long[] { indexStart, indexEnd, fileChannel.position() });
+            long index = indexStart;
+            while(index < indexEnd) {
+                int pageIndex = (int)(index / SVSFile.PAGE_SIZE);
+                int offsetInPage = (int)(index % SVSFile.PAGE_SIZE);
+                long n = Math.min(indexEnd - index, SVSFile.PAGE_SIZE - offsetInPage);
+                if(svsFile.svsOverlayPages[pageIndex] != null) {
+                    ByteBuffer bb = ByteBuffer.wrap(svsFile.svsOverlayPages[pageIndex], offsetInPage, (int)n);
+                    while(bb.hasRemaining()) {
+                        fileChannel.write(bb);
+                    }
+                }
+                else {
+                    // extend the copy over the following unedited pages
+                    while(index + n < indexEnd && svsFile.svsOverlayPages[(int)((index + n) / SVSFile.PAGE_SIZE)] == null) {
+                        n = Math.min(indexEnd - index, n + SVSFile.PAGE_SIZE);
+                    }
+                    long position = index;
+                    while(position < index + n) {
+                        long transferred = svsFile.svsFileChannel.transferTo(position, index + n - position, fileChannel);
+                        if(transferred == 0) {
+                            throw new IOException("unexpected end of SVS file");
+                        }
+                        position += transferred;
+                    }
+                }
+                index += n;
+            }
+        }
+    }
+
+    public class ReplaceSegment extends Segment {
+        public Iterator<byte[]> bytesIterator = null;
+        public ReplaceSegment(Iterator<byte[]> bytesIterator) {
+            this.bytesIterator = bytesIterator;
+        }
+        @Override
+        void write(FileChannel fileChannel) throws IOException {
+            while(bytesIterator.hasNext()) {
+                ByteBuffer bb = ByteBuffer.wrap(bytesIterator.next());
+                while(bb.hasRemaining()) {
+                    fileChannel.write(bb);
+                }
+            }
+        }
+    }
+
+    public class FillSegment extends Segment {
+        public long count = -1;
+        public FillSegment(long count) {
+            this.count = count;
+        }
+        @Override
+        void write(FileChannel fileChannel) throws IOException {
+            ByteBuffer bb = ByteBuffer.allocate((int)Math.min(count, SVSFile.PAGE_SIZE));
+            long remaining = count;
+            while(remaining > 0) {
+                ((Buffer)bb).clear();
+                ((Buffer)bb).limit((int)Math.min(remaining, bb.capacity()));
+                remaining -= fileChannel.write(bb);
+            }
+        }
+    }
+
+}
@@ -36,10 +36,10 @@ public class SVSUtil {
 
     public static void main(String[] args) throws IOException, FileNotFoundException, InterruptedException {
 
-        if(args.length == 0 || !("colorutil".equals(args[0]) || "labelutil".equals(args[0]) || "macroutil".equals(args[0]))) {
+        if(args.length == 0 || !("colorutil".equals(args[0]) || "labelutil".equals(args[0]) || "macroutil".equals(args[0]) || "lutbenchmark".equals(args[0]))) {
             System.err.println("USAGE: java -jar svsutil.jar [application]");
             System.err.println();
-            System.err.println("available applications: colorutil, labelutil, macroutil");
+            System.err.println("available applications: colorutil, labelutil, macroutil, lutbenchmark");
             System.exit(1);
         }
 
@@ -55,6 +55,10 @@ public class SVSUtil {
             MacroUtil.main(Arrays.copyOfRange(args, 1, args.length));
         }
 
+        if("lutbenchmark".equals(args[0])) {
+            LutBenchmark.main(Arrays.copyOfRange(args, 1, args.length));
+        }
+
     }
     
 }        
@@ -24,13 +24,15 @@
 
 package svsutil;
 
-import java.util.ArrayList;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
 import java.util.Arrays;
-import java.util.Collections;
 import java.util.Comparator;
 import java.util.LinkedHashMap;
-import java.util.List;
 import java.util.Map;
+import java.util.function.IntToLongFunction;
 import java.util.logging.Logger;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -43,7 +45,10 @@ public class TIFFDir {
     
     static final Logger logger = Logger.getLogger(TIFFDir.class.getName());    
 
+    static final int PARALLEL_DECODE_THRESHOLD = 0x00010000; // array elements
+
     String id = null;
+    int tiffDirIndex = -1; // id as an int
         
     public Map<Integer, TIFFTag> tiffTagMap = new LinkedHashMap<>();
     
@@ -90,13 +95,19 @@ public class TIFFDir {
     public long tileDataContigOffsetInSVS = -1;
     public long tileDataContigLength = -1;
     
-    // here are objectified representations of the tiles
-    Tile[] tilesInTIFFOrder = null;
-    Tile[] tilesInSVSOrder = null;
+    // here is the tile table, which is a set of parallel arrays with the tiles
+    // in SVS order (the order of their bytes in the SVS file); the TIFF arrays
+    // are in TIFF order (row-major), so tileIndexInTiffDir and tileIndexInSVS
+    // map between the two orders
+    public long[] tileOffsets = null;
+    public int[] tileLengths = null;
+    public int[] tileIndexInTiffDir = null; // SVS order -> TIFF order
+    public int[] tileIndexInSVS = null; // TIFF order -> SVS order
 
     public TIFFDir(String id, SVSFile svsFile, long offsetInSvs) {
 
         this.id = id;
+        this.tiffDirIndex = Integer.parseInt(id);
         
         // 1. parse the TIFF tags
         {
@@ -108,16 +119,16 @@ public class TIFFDir {
             }
             this.offsetInSvs = offsetInSvs;
             long currentOffsetInHeader = 0;
-            tagNumberOfTags = (int)ByteUtil.bytesToLong(svsFile.getBytes(offsetInSvs + currentOffsetInHeader, offsetInSvs + currentOffsetInHeader + numberOfTagsLength));
+            tagNumberOfTags = (int)(numberOfTagsLength == 0x00000002 ? svsFile.getShortLE(offsetInSvs + currentOffsetInHeader) : svsFile.getBytesAsLong(offsetInSvs + currentOffsetInHeader));
             currentOffsetInHeader += numberOfTagsLength;
             for(int x = 0; x < tagNumberOfTags; x++) {
-                int tagName = ByteUtil.bytesToShort(svsFile.getBytes(offsetInSvs + currentOffsetInHeader, offsetInSvs + currentOffsetInHeader + 0x00000002));
+                int tagName = svsFile.getShortLE(offsetInSvs + currentOffsetInHeader);
                 long osTagName = offsetInSvs + currentOffsetInHeader;
                 currentOffsetInHeader += 0x00000002;
-                int tagDataType = ByteUtil.bytesToShort(svsFile.getBytes(offsetInSvs + currentOffsetInHeader, offsetInSvs + currentOffsetInHeader + 0x00000002));
+                int tagDataType = svsFile.getShortLE(offsetInSvs + currentOffsetInHeader);
                 long osTagDataType = offsetInSvs + currentOffsetInHeader;
                 currentOffsetInHeader += 0x00000002;
-                int tagLength = (int)ByteUtil.bytesToLong(svsFile.getBytes(offsetInSvs + currentOffsetInHeader, offsetInSvs + currentOffsetInHeader + svsFile.longLength));
+                int tagLength = (int)svsFile.getBytesAsLong(offsetInSvs + currentOffsetInHeader);
                 long osTagLength = offsetInSvs + currentOffsetInHeader;
                 currentOffsetInHeader += svsFile.longLength;
                 switch(tagDataType) {
@@ -134,7 +145,7 @@ public class TIFFDir {
                             tiffTag.elementValues = new long[tagLength];
                             tiffTag.osElementValues = new long[tagLength];
                             for(int y = 0; y < tagLength; y++) {
-                                tiffTag.elementValues[y] = ByteUtil.bytesToLong(svsFile.getBytes(offsetInSvs + currentOffsetInHeader, offsetInSvs + currentOffsetInHeader + svsFile.longLength));
+                                tiffTag.elementValues[y] = svsFile.getBytesAsLong(offsetInSvs + currentOffsetInHeader);
                                 tiffTag.osElementValues[y] = offsetInSvs + currentOffsetInHeader;
                                 currentOffsetInHeader += svsFile.longLength;
                             }
@@ -150,10 +161,7 @@ public class TIFFDir {
                             tiffTag.osLength = osTagLength;
                             tiffTag.elementValuesDereferenced = new long[tagLength];
                             tiffTag.osElementValuesDereferenced = new long[tagLength];
-                            for(int y = 0; y < tagLength; y++) {
-                                tiffTag.osElementValuesDereferenced[y] = ByteUtil.bytesToLong(svsFile.getBytes(offsetInSvs + currentOffsetInHeader, offsetInSvs + currentOffsetInHeader + svsFile.longLength)) + (svsFile.longLength * y);
-                                tiffTag.elementValuesDereferenced[y] = ByteUtil.bytesToLong(svsFile.getBytes(tiffTag.osElementValuesDereferenced[y], tiffTag.osElementValuesDereferenced[y] + svsFile.longLength));
-                            }
+                            readLongArray(svsFile, svsFile.getBytesAsLong(offsetInSvs + currentOffsetInHeader), tiffTag.elementValuesDereferenced, tiffTag.osElementValuesDereferenced);
                             tiffTag.osElementValue = offsetInSvs + currentOffsetInHeader;
                             currentOffsetInHeader += svsFile.longLength;
                         }
@@ -173,7 +181,7 @@ public class TIFFDir {
                             tiffTag.osElementValues = new long[tagLength];
                             int bytesRead = 0;
                             for(int y = 0; y < tagLength; y++) {
-                                tiffTag.elementValues[y] = ByteUtil.bytesToShort(svsFile.getBytes(offsetInSvs + currentOffsetInHeader, offsetInSvs + currentOffsetInHeader + 0x0000002));
+                                tiffTag.elementValues[y] = svsFile.getShortLE(offsetInSvs + currentOffsetInHeader);
                                 tiffTag.osElementValues[y] = offsetInSvs + currentOffsetInHeader;
                                 currentOffsetInHeader += 0x00000002;
                                 bytesRead += 2;
@@ -195,8 +203,8 @@ public class TIFFDir {
                             tiffTag.elementValuesDereferenced = new int[tagLength];
                             tiffTag.osElementValuesDereferenced = new long[tagLength];
                             for(int y = 0; y < tagLength; y++) {
-                                tiffTag.osElementValuesDereferenced[y] = ByteUtil.bytesToLong(svsFile.getBytes(offsetInSvs + currentOffsetInHeader, offsetInSvs + currentOffsetInHeader + svsFile.longLength)) + (0x00000002 * y);
-                                tiffTag.elementValuesDereferenced[y] = (int)ByteUtil.bytesToLong(svsFile.getBytes(tiffTag.osElementValuesDereferenced[y], tiffTag.osElementValuesDereferenced[y] + 0x00000002));
+                                tiffTag.osElementValuesDereferenced[y] = svsFile.getBytesAsLong(offsetInSvs + currentOffsetInHeader) + (0x00000002 * y);
+                                tiffTag.elementValuesDereferenced[y] = svsFile.getShortLE(tiffTag.osElementValuesDereferenced[y]);
                             }
                             tiffTag.osElementValue = offsetInSvs + currentOffsetInHeader;
                             currentOffsetInHeader += svsFile.longLength;
@@ -212,7 +220,7 @@ public class TIFFDir {
                         tiffTag.dataType = tagDataType;
                         tiffTag.osDataType = osTagDataType;
                         tiffTag.osLength = osTagLength;
-                        tiffTag.osElementValueDereferenced = ByteUtil.bytesToLong(svsFile.getBytes(offsetInSvs + currentOffsetInHeader, offsetInSvs + currentOffsetInHeader + svsFile.longLength));
+                        tiffTag.osElementValueDereferenced = svsFile.getBytesAsLong(offsetInSvs + currentOffsetInHeader);
                         tiffTag.elementValueDereferenced = new String(svsFile.getBytes(tiffTag.osElementValueDereferenced, tiffTag.osElementValueDereferenced + tiffTag.length));
                         tiffTag.osElementValue = offsetInSvs + currentOffsetInHeader;
                         currentOffsetInHeader += svsFile.longLength;
@@ -231,7 +239,7 @@ public class TIFFDir {
                             tiffTag.elementValues = new long[tagLength];
                             tiffTag.osElementValues = new long[tagLength];
                             for(int y = 0; y < tagLength; y++) {
-                                tiffTag.elementValues[y] = ByteUtil.bytesToLong(svsFile.getBytes(offsetInSvs + currentOffsetInHeader, offsetInSvs + currentOffsetInHeader + svsFile.longLength));
+                                tiffTag.elementValues[y] = svsFile.getBytesAsLong(offsetInSvs + currentOffsetInHeader);
                                 tiffTag.osElementValues[y] = offsetInSvs + currentOffsetInHeader;
                                 currentOffsetInHeader += svsFile.longLength;
                             }
@@ -247,10 +255,7 @@ public class TIFFDir {
                             tiffTag.osLength = osTagLength;
                             tiffTag.elementValuesDereferenced = new long[tagLength];
                             tiffTag.osElementValuesDereferenced = new long[tagLength];
-                            for(int y = 0; y < tagLength; y++) {
-                                tiffTag.osElementValuesDereferenced[y] = ByteUtil.bytesToLong(svsFile.getBytes(offsetInSvs + currentOffsetInHeader, offsetInSvs + currentOffsetInHeader + svsFile.longLength)) + (svsFile.longLength * y);
-                                tiffTag.elementValuesDereferenced[y] = ByteUtil.bytesToLong(svsFile.getBytes(tiffTag.osElementValuesDereferenced[y], tiffTag.osElementValuesDereferenced[y] + svsFile.longLength));
-                            }
+                            readLongArray(svsFile, svsFile.getBytesAsLong(offsetInSvs + currentOffsetInHeader), tiffTag.elementValuesDereferenced, tiffTag.osElementValuesDereferenced);
                             tiffTag.osElementValue = offsetInSvs + currentOffsetInHeader;
                             currentOffsetInHeader += svsFile.longLength;
                         }
@@ -265,7 +270,7 @@ public class TIFFDir {
                         tiffTag.dataType = tagDataType;
                         tiffTag.osDataType = osTagDataType;
                         tiffTag.osLength = osTagLength;
-                        tiffTag.osElementValueDereferenced = ByteUtil.bytesToLong(svsFile.getBytes(offsetInSvs + currentOffsetInHeader, offsetInSvs + currentOffsetInHeader + svsFile.longLength));
+                        tiffTag.osElementValueDereferenced = svsFile.getBytesAsLong(offsetInSvs + currentOffsetInHeader);
                         tiffTag.elementValuesDereferenced = svsFile.getBytes(tiffTag.osElementValueDereferenced, tiffTag.osElementValueDereferenced + tiffTag.length);
                         tiffTag.osElementValue = offsetInSvs + currentOffsetInHeader;
                         currentOffsetInHeader += svsFile.longLength;
@@ -277,11 +282,25 @@ public class TIFFDir {
                     }
                 }
             }
-            tagNextDirOffsetInSvs = ByteUtil.bytesToLong(svsFile.getBytes(offsetInSvs + currentOffsetInHeader, offsetInSvs + currentOffsetInHeader + svsFile.longLength));
+            tagNextDirOffsetInSvs = svsFile.getBytesAsLong(offsetInSvs + currentOffsetInHeader);
             tagNextDirOffsetInSvsOffsetInSvs = offsetInSvs + currentOffsetInHeader;
             currentOffsetInHeader += svsFile.longLength;
         }
 
+        indexTags();
+        
+    }
+
+    // for TIFF directories read from a TIFF directory index (see SVSFileIndex)
+    // rather than parsed; the caller fills in the tags and calls indexTags()
+    TIFFDir(String id) {
+        this.id = id;
+        this.tiffDirIndex = Integer.parseInt(id);
+    }
+
+    // steps 2 and 3 only use the parsed tags, not the SVS file
+    void indexTags() {
+
         // 2. put the tags we care about into more convenient representations
         {
             subfileType = (int)((TIFFTagLong)tiffTagMap.get(254)).elementValues[0];
@@ -321,39 +340,66 @@ public class TIFFDir {
 
         // 3. put the tiles into a more convenient representation
         if(tagTileOffsetsInSvs != null) {
-            List<Tile> tileList = new ArrayList<>();
-            for(int x = 0; x < tagTileOffsetsInSvs.length; x++) {
-                Tile tile = new Tile();
-                tileList.add(tile);
-                tile.indexInTiffDir = x;
-                tile.offsetInSVS = tagTileOffsetsInSvs[x];
-                tile.length = tagTileLengths[x];
-                tile.tileX = x % widthInTiles;
-                tile.tileY = x / widthInTiles;
-                tile.id = String.format("%s.%d.%d", id, tile.tileX, tile.tileY);
-                svsFile.tileMap.put(tile.id, tile);
+            int tileCount = tagTileOffsetsInSvs.length;
+            tileIndexInTiffDir = new int[tileCount];
+            boolean inTIFFOrder = true;
+            for(int x = 0; x < tileCount; x++) {
+                tileIndexInTiffDir[x] = x;
+                inTIFFOrder &= x == 0 || tagTileOffsetsInSvs[x] >= tagTileOffsetsInSvs[x - 1];
             }
-            tilesInTIFFOrder = tileList.toArray(new Tile[tileList.size()]);
-            Collections.sort(tileList, new Comparator<Tile>() {
-                @Override
-                public int compare(Tile o1, Tile o2) {
-                    if(o1.offsetInSVS > o2.offsetInSVS) { return 1; }
-                    else if(o1.offsetInSVS < o2.offsetInSVS) { return -1; }
-                    return 0;
-                }
-            });
-            int x = 0;
-            for(Tile tile : tileList) {
-                tile.indexInSVS = x;
-                x++;
+            if(!inTIFFOrder) {
+                // stable, so tiles sharing an offset stay in TIFF order
+                tileIndexInTiffDir = Arrays.stream(tileIndexInTiffDir).boxed().sorted(Comparator.comparingLong(x -> tagTileOffsetsInSvs[x])).mapToInt(x -> x).toArray();
+            }
+            tileOffsets = new long[tileCount];
+            tileLengths = new int[tileCount];
+            tileIndexInSVS = new int[tileCount];
+            for(int x = 0; x < tileCount; x++) {
+                tileOffsets[x] = tagTileOffsetsInSvs[tileIndexInTiffDir[x]];
+                tileLengths[x] = tagTileLengths[tileIndexInTiffDir[x]];
+                tileIndexInSVS[tileIndexInTiffDir[x]] = x;
             }
-            tilesInSVSOrder = tileList.toArray(new Tile[tileList.size()]);
-            tileDataContigOffsetInSVS = tilesInSVSOrder[0].offsetInSVS;
-            tileDataContigLength = tilesInSVSOrder[tilesInSVSOrder.length - 1].offsetInSVS + tilesInSVSOrder[tilesInSVSOrder.length - 1].length;
+            tileDataContigOffsetInSVS = tileOffsets[0];
+            tileDataContigLength = tileOffsets[tileCount - 1] + tileLengths[tileCount - 1];
         }
         
     }
     
+    // packed tile key for the tile at this position in SVS order
+    public long tileKey(int indexInSVS) {
+        return Tile.key(tiffDirIndex, tileIndexInTiffDir[indexInSVS] % widthInTiles, tileIndexInTiffDir[indexInSVS] / widthInTiles);
+    }
+
+    // position in SVS order of the tile with this packed tile key
+    public int tileIndexInSVS(long tileKey) {
+        return tileIndexInSVS[Tile.tileY(tileKey) * widthInTiles + Tile.tileX(tileKey)];
+    }
+
+    // reads an array of longs (e.g., TileOffsets or TileByteCounts) as one
+    // contiguous region and decodes it through a LongBuffer (GT450 BigTIFF)
+    // or IntBuffer (AT2 TIFF) view in the file's byte order; arrays for the
+    // full resolution level of a large slide are decoded in parallel
+    void readLongArray(SVSFile svsFile, long osArray, long[] elementValues, long[] osElementValues) {
+        ByteBuffer bb = ByteBuffer.wrap(svsFile.getBytes(osArray, osArray + (long)elementValues.length * svsFile.longLength)).order(ByteOrder.LITTLE_ENDIAN);
+        IntToLongFunction decoder;
+        if(svsFile.longLength == 0x00000008) {
+            LongBuffer lb = bb.asLongBuffer();
+            decoder = y -> lb.get(y) & 0x00ffffffffffffffL;
+        }
+        else {
+            IntBuffer ib = bb.asIntBuffer();
+            decoder = y -> ib.get(y) & 0x00000000ffffffffL;
+        }
+        if(elementValues.length >= PARALLEL_DECODE_THRESHOLD) {
+            Arrays.parallelSetAll(elementValues, decoder);
+            Arrays.parallelSetAll(osElementValues, y -> osArray + (long)svsFile.longLength * y);
+        }
+        else {
+            Arrays.setAll(elementValues, decoder);
+            Arrays.setAll(osElementValues, y -> osArray + (long)svsFile.longLength * y);
+        }
+    }
+
     public class TIFFTag {
         int name = -1;
         int dataType = -1;
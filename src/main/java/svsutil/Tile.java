@@ -24,24 +24,30 @@
 
 package svsutil;
 
-import java.util.logging.Logger;
-
 /**
- *
+ * Tiles are not objects. Each TIFF directory keeps its tiles in a tile table
+ * of parallel arrays (see TIFFDir) and a tile is passed around as a packed
+ * long key of its TIFF directory index (16 bits) and its x and y position in
+ * tiles (24 bits each).
+ * 
  * @author geoffrey.smith@emory.edu
  */
 public class Tile {
     
-    static final Logger logger = Logger.getLogger(Tile.class.getName());
+    public static long key(int tiffDirIndex, int tileX, int tileY) {
+        return ((long)tiffDirIndex << 48) | ((long)tileX << 24) | (long)tileY;
+    }
+
+    public static int tiffDirIndex(long key) {
+        return (int)(key >>> 48);
+    }
+
+    public static int tileX(long key) {
+        return (int)((key >>> 24) & 0x00ffffff);
+    }
+
+    public static int tileY(long key) {
+        return (int)(key & 0x00ffffff);
+    }
 
-    String id = null;
-    
-    int indexInTiffDir = -1; // indicates the ordering of this tile in the TIFF array
-    int indexInSVS = -1; // indicates the ordering of this tile in the SVS file
-    long offsetInSVS = -1;
-    int length = -1;
-    
-    int tileX;
-    int tileY;
-    
 }
@@ -0,0 +1,142 @@
+/**
+ * MIT License
+ *
+ * Copyright (c) 2022 Geoffrey H. Smith
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package svsutil;
+
+import java.io.IOException;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageInputStreamImpl;
+import javax.imageio.stream.ImageOutputStream;
+import javax.imageio.stream.ImageOutputStreamImpl;
+
+/**
+ * A growable byte array that the recolor pipeline recycles (see
+ * RecolorPipeline.takeTileBuffer), so that a tile's JPEG bytes on the way in
+ * and on the way out don't cost an allocation per tile. It can be read by
+ * the JPEG reader and written by the JPEG writer in place through the image
+ * streams below, which (unlike ImageIO's memory cache streams) don't copy
+ * the bytes into a cache of their own. Whoever holds a tile buffer owns it
+ * until it gives it back to the pool.
+ * 
+ * @author geoffrey.smith@emory.edu
+ */
+public class TileBuffer {
+
+    public byte[] bytes = null;
+    public int length = 0;
+
+    public TileBuffer(int capacity) {
+        bytes = new byte[capacity];
+    }
+
+    public void ensureCapacity(int capacity) {
+        if(bytes.length < capacity) {
+            byte[] grownBytes = new byte[Math.max(capacity, bytes.length * 2)];
+            System.arraycopy(bytes, 0, grownBytes, 0, length);
+            bytes = grownBytes;
+        }
+    }
+
+    // appends count bytes of vals
+    public void append(byte[] vals, int offset, int count) {
+        ensureCapacity(length + count);
+        System.arraycopy(vals, offset, bytes, length, count);
+        length += count;
+    }
+
+    // reads the bytes up to length
+    public ImageInputStream getImageInputStream() {
+        return new ImageInputStreamImpl() {
+            @Override
+            public int read() {
+                bitOffset = 0;
+                return streamPos < length ? bytes[(int)streamPos++] & 0xff : -1;
+            }
+            @Override
+            public int read(byte[] b, int off, int len) {
+                bitOffset = 0;
+                if(len == 0) {
+                    return 0;
+                }
+                if(streamPos >= length) {
+                    return -1;
+                }
+                int n = (int)Math.min(len, length - streamPos);
+                System.arraycopy(bytes, (int)streamPos, b, off, n);
+                streamPos += n;
+                return n;
+            }
+            @Override
+            public long length() {
+                return length;
+            }
+        };
+    }
+
+    // empties the buffer and writes into it from the start
+    public ImageOutputStream getImageOutputStream() {
+        length = 0;
+        return new ImageOutputStreamImpl() {
+            @Override
+            public void write(int b) throws IOException {
+                flushBits();
+                ensureCapacity((int)streamPos + 1);
+                bytes[(int)streamPos++] = (byte)b;
+                length = Math.max(length, (int)streamPos);
+            }
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                flushBits();
+                ensureCapacity((int)streamPos + len);
+                System.arraycopy(b, off, bytes, (int)streamPos, len);
+                streamPos += len;
+                length = Math.max(length, (int)streamPos);
+            }
+            @Override
+            public int read() {
+                bitOffset = 0;
+                return streamPos < length ? bytes[(int)streamPos++] & 0xff : -1;
+            }
+            @Override
+            public int read(byte[] b, int off, int len) {
+                bitOffset = 0;
+                if(len == 0) {
+                    return 0;
+                }
+                if(streamPos >= length) {
+                    return -1;
+                }
+                int n = (int)Math.min(len, length - streamPos);
+                System.arraycopy(bytes, (int)streamPos, b, off, n);
+                streamPos += n;
+                return n;
+            }
+            @Override
+            public long length() {
+                return length;
+            }
+        };
+    }
+
+}
@@ -0,0 +1,78 @@
+/**
+ * MIT License
+ *
+ * Copyright (c) 2022 Geoffrey H. Smith
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package svsutil;
+
+/**
+ * The bounded reorder buffer between the collect stage of the recolor
+ * pipeline and the writer of the recolored SVS file. The tiles are written
+ * in tile number order (see TileScheduler), one tile directory's tile
+ * contig after the other, but the pipeline finishes them in whatever order
+ * its workers do, so a finished tile waits here until the writer gets to
+ * it. Only tiles less than window tile numbers ahead of the writer may be
+ * claimed (see awaitWindow), so at most window tiles wait here and the
+ * collect stage never blocks. The collector owns a tile buffer between put
+ * and take, and the writer owns it after that.
+ * 
+ * @author geoffrey.smith@emory.edu
+ */
+public class TileCollector {
+
+    public static final int WINDOW_TILES = 0x400;
+
+    public int window = -1;
+
+    TileBuffer[] tileBuffers = null; // ring, indexed by tile number % window
+    int nextTileNo = 0; // the next tile the writer takes
+
+    public TileCollector(int window) {
+        this.window = window;
+        tileBuffers = new TileBuffer[window];
+    }
+
+    // waits until a tile may be claimed
+    public synchronized void awaitWindow(int tileNo) throws InterruptedException {
+        while(tileNo >= nextTileNo + window) {
+            wait();
+        }
+    }
+
+    public synchronized void put(int tileNo, TileBuffer tileBuffer) {
+        tileBuffers[tileNo % window] = tileBuffer;
+        notifyAll();
+    }
+
+    // waits for the next tile in tile number order
+    public synchronized TileBuffer take() throws InterruptedException {
+        TileBuffer tileBuffer;
+        while((tileBuffer = tileBuffers[nextTileNo % window]) == null) {
+            wait();
+        }
+        tileBuffers[nextTileNo % window] = null;
+        nextTileNo++;
+        notifyAll();
+        return tileBuffer;
+    }
+
+}
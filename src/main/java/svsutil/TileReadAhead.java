@@ -0,0 +1,159 @@
+/**
+ * MIT License
+ *
+ * Copyright (c) 2022 Geoffrey H. Smith
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package svsutil;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Reads the tiles ahead of the recolor runners. The runners claim tiles in
+ * tile number order (the TIFF directories in the order of their tile
+ * contigs and the tiles of each TIFF directory in SVS order, see
+ * TileScheduler), which is also the order of the tile bytes in the SVS
+ * file, so this thread walks the tiles in the same order, coalesces runs of
+ * adjacent tiles into one large positional read into a buffer from a
+ * bounded pool, and hands the tiles over as their reads complete. That way
+ * reading the SVS file (e.g., over NFS) overlaps with JPEG decoding and
+ * encoding instead of stalling it one tile at a time. A buffer goes back to
+ * the pool once every tile in it has been handed over.
+ * 
+ * @author geoffrey.smith@emory.edu
+ */
+public class TileReadAhead implements Runnable {
+
+    static final Logger logger = Logger.getLogger(TileReadAhead.class.getName());
+
+    public static final int CHUNK_SIZE = 0x00400000; // largest single read
+    public static final int CHUNK_GAP = 0x00001000; // largest gap read through
+
+    public SVSFile svsFile = null;
+    public List<TIFFDir> tiffDirList = new ArrayList<>(); // tiled TIFF directories
+    public int bufferSize = -1;
+    public int bufferCount = -1;
+
+    int buffersAllocated = 0;
+    BlockingQueue<byte[]> bufferPool = new LinkedBlockingQueue<>();
+    Chunk[] chunkByTileNo = null;
+
+    public TileReadAhead(SVSFile svsFile, int startWithTiffDirIndex, long memoryCap) {
+        this.svsFile = svsFile;
+        for(int x = startWithTiffDirIndex; x < svsFile.tiffDirList.size(); x++) {
+            if(svsFile.tiffDirList.get(x).tileOffsets != null) {
+                tiffDirList.add(svsFile.tiffDirList.get(x));
+            }
+        }
+        tiffDirList.sort(Comparator.comparingLong(x -> x.tileDataContigOffsetInSVS));
+        bufferSize = (int)Math.max(1, Math.min(CHUNK_SIZE, memoryCap));
+        bufferCount = (int)Math.max(1, memoryCap / bufferSize);
+        chunkByTileNo = new Chunk[tiffDirList.stream().mapToInt(x -> x.tileOffsets.length).sum()];
+    }
+
+    @Override
+    public void run() {
+        try {
+            int tileNo = 0;
+            for(TIFFDir tiffDir : tiffDirList) {
+                int y = 0;
+                while(y < tiffDir.tileOffsets.length) {
+                    // coalesce the run of tiles starting here
+                    long chunkStart = tiffDir.tileOffsets[y];
+                    long chunkEnd = chunkStart + tiffDir.tileLengths[y];
+                    int tileCount = 1;
+                    while(y + tileCount < tiffDir.tileOffsets.length) {
+                        long tileStart = tiffDir.tileOffsets[y + tileCount];
+                        long tileEnd = tileStart + tiffDir.tileLengths[y + tileCount];
+                        if(tileStart - chunkEnd > CHUNK_GAP || Math.max(chunkEnd, tileEnd) - chunkStart > bufferSize) {
+                            break;
+                        }
+                        chunkEnd = Math.max(chunkEnd, tileEnd);
+                        tileCount++;
+                    }
+                    Chunk chunk = new Chunk();
+                    chunk.offset = chunkStart;
+                    chunk.tilesRemaining = tileCount;
+                    // a tile larger than a pool buffer gets a buffer of its own
+                    chunk.pooled = chunkEnd - chunkStart <= bufferSize;
+                    chunk.bytes = chunk.pooled ? takeBuffer() : new byte[(int)(chunkEnd - chunkStart)];
+                    svsFile.read(chunkStart, ByteBuffer.wrap(chunk.bytes, 0, (int)(chunkEnd - chunkStart)));
+                    synchronized(this) {
+                        Arrays.fill(chunkByTileNo, tileNo, tileNo + tileCount, chunk);
+                        notifyAll();
+                    }
+                    tileNo += tileCount;
+                    y += tileCount;
+                }
+            }
+        }
+        catch(Exception e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+    }
+
+    // waits for the tile's read to complete and copies its bytes into
+    // tileBytes; each tile is handed over exactly once
+    public void getTileBytes(TIFFDir tiffDir, int indexInSVS, int tileNo, byte[] tileBytes) throws InterruptedException {
+        Chunk chunk = null;
+        synchronized(this) {
+            while((chunk = chunkByTileNo[tileNo]) == null) {
+                wait();
+            }
+            chunkByTileNo[tileNo] = null;
+        }
+        int offsetInChunk = (int)(tiffDir.tileOffsets[indexInSVS] - chunk.offset);
+        System.arraycopy(chunk.bytes, offsetInChunk, tileBytes, 0, tiffDir.tileLengths[indexInSVS]);
+        boolean lastTile;
+        synchronized(chunk) {
+            lastTile = --chunk.tilesRemaining == 0;
+        }
+        if(lastTile && chunk.pooled) {
+            bufferPool.add(chunk.bytes);
+        }
+    }
+
+    byte[] takeBuffer() throws InterruptedException {
+        if(bufferPool.isEmpty() && buffersAllocated < bufferCount) {
+            buffersAllocated++;
+            return new byte[bufferSize];
+        }
+        return bufferPool.take();
+    }
+
+    class Chunk {
+        long offset = -1;
+        byte[] bytes = null;
+        int tilesRemaining = -1;
+        boolean pooled = false;
+    }
+
+}
@@ -0,0 +1,193 @@
+/**
+ * MIT License
+ *
+ * Copyright (c) 2022 Geoffrey H. Smith
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package svsutil;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Hands out the tiles to the read stage of the recolor pipeline without
+ * locks. The unit of work is a tile that is recolored plus the "skip" tiles
+ * after it in the same TIFF directory that are copied as is, so the units
+ * (and so which tiles are recolored) don't depend on the number of workers
+ * or on timing. The units are numbered in tile number order and a worker
+ * claims a chunk of CHUNK_UNITS of them at a time from a shared cursor, so
+ * a claim costs one atomic add per chunk and the workers stay close
+ * together in tile order, which is the order the read-ahead reads the
+ * tiles in. Once the cursor reaches the end, a worker that runs out steals
+ * the back half of the unclaimed units of the worker with the most left.
+ * A worker's units are always handed to it in increasing tile number
+ * order. The tile numbers go through the TIFF directories in the order of
+ * their tile contigs in the SVS file, which is the order the recolored
+ * tiles are written in (see TileCollector).
+ * 
+ * @author geoffrey.smith@emory.edu
+ */
+public class TileScheduler {
+
+    public static final int CHUNK_UNITS = 16;
+
+    public List<TIFFDir> tiffDirList = new ArrayList<>(); // tiled TIFF directories
+    public int skip = -1;
+    public int unitCount = 0;
+
+    int[] unitStart = null; // first unit of each TIFF directory
+    int[] tileNoStart = null; // first tile number of each TIFF directory
+    AtomicLong cursor = new AtomicLong();
+    AtomicLong tilesClaimed = new AtomicLong();
+    AtomicInteger workerCount = new AtomicInteger();
+    AtomicLong[] workerRanges = null; // next unit << 32 | end unit, per worker
+
+    public TileScheduler(SVSFile svsFile, int startWithTiffDirIndex, int skip, int workers) {
+        for(int x = startWithTiffDirIndex; x < svsFile.tiffDirList.size(); x++) {
+            // skip the label, macro, etc.
+            if(svsFile.tiffDirList.get(x).tagTileLengthsOffsetInSVS != null) {
+                tiffDirList.add(svsFile.tiffDirList.get(x));
+            }
+        }
+        tiffDirList.sort(Comparator.comparingLong(x -> x.tileDataContigOffsetInSVS));
+        this.skip = skip;
+        unitStart = new int[tiffDirList.size() + 1];
+        tileNoStart = new int[tiffDirList.size() + 1];
+        for(int x = 0; x < tiffDirList.size(); x++) {
+            int tileCount = tiffDirList.get(x).tileOffsets.length;
+            unitStart[x + 1] = unitStart[x] + (tileCount + skip) / (skip + 1);
+            tileNoStart[x + 1] = tileNoStart[x] + tileCount;
+        }
+        unitCount = unitStart[tiffDirList.size()];
+        workerRanges = new AtomicLong[workers];
+        for(int x = 0; x < workers; x++) {
+            workerRanges[x] = new AtomicLong();
+        }
+    }
+
+    // a worker index for each of the (at most workers) threads claiming units
+    public int newWorker() {
+        return workerCount.getAndIncrement();
+    }
+
+    // the worker's next unit, -1 when there are none left anywhere
+    public int next(int worker) {
+        AtomicLong workerRange = workerRanges[worker];
+        while(true) {
+            long range = workerRange.get();
+            int next = (int)(range >>> 32);
+            int end = (int)range;
+            if(next < end) {
+                if(workerRange.compareAndSet(range, range + (1L << 32))) {
+                    tilesClaimed.addAndGet(skipped(next) + 1);
+                    return next;
+                }
+                continue; // a thief moved the end
+            }
+            long chunkStart = cursor.getAndAdd(CHUNK_UNITS);
+            if(chunkStart < unitCount) {
+                workerRange.set((chunkStart << 32) | Math.min(chunkStart + CHUNK_UNITS, unitCount));
+                continue;
+            }
+            if(!steal(worker)) {
+                return -1;
+            }
+        }
+    }
+
+    // moves the back half of the largest range of another worker to this
+    // worker, false if there was nothing left to steal
+    boolean steal(int worker) {
+        while(true) {
+            int victim = -1;
+            long victimRange = 0;
+            int victimLeft = 0;
+            for(int x = 0; x < workerRanges.length; x++) {
+                long range = workerRanges[x].get();
+                int left = (int)range - (int)(range >>> 32);
+                if(x != worker && left > victimLeft) {
+                    victim = x;
+                    victimRange = range;
+                    victimLeft = left;
+                }
+            }
+            if(victim < 0) {
+                return false;
+            }
+            int end = (int)victimRange;
+            int mid = end - (victimLeft + 1) / 2;
+            if(workerRanges[victim].compareAndSet(victimRange, (victimRange & 0xffffffff00000000L) | mid)) {
+                workerRanges[worker].set(((long)mid << 32) | end);
+                return true;
+            }
+        }
+    }
+
+    public long getTilesClaimed() {
+        return tilesClaimed.get();
+    }
+
+    // the TIFF directory of a unit, the last one starting at or before it
+    // (an empty directory starts where the next one does)
+    int tiffDirIndex(int unit) {
+        int lo = 0;
+        int hi = tiffDirList.size();
+        while(lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if(unitStart[mid + 1] <= unit) {
+                lo = mid + 1;
+            }
+            else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    public TIFFDir tiffDir(int unit) {
+        return tiffDirList.get(tiffDirIndex(unit));
+    }
+
+    // the recolored tile's index in its TIFF directory
+    public int indexInSVS(int unit) {
+        return indexInSVS(unit, tiffDirIndex(unit));
+    }
+
+    int indexInSVS(int unit, int tiffDirIndex) {
+        return (unit - unitStart[tiffDirIndex]) * (skip + 1);
+    }
+
+    // the recolored tile's number (see TileReadAhead)
+    public int tileNo(int unit) {
+        int tiffDirIndex = tiffDirIndex(unit);
+        return tileNoStart[tiffDirIndex] + indexInSVS(unit, tiffDirIndex);
+    }
+
+    // the number of tiles after the recolored tile that are copied as is
+    public int skipped(int unit) {
+        int tiffDirIndex = tiffDirIndex(unit);
+        return Math.min(skip, tiffDirList.get(tiffDirIndex).tileOffsets.length - (indexInSVS(unit, tiffDirIndex) + 1));
+    }
+
+}
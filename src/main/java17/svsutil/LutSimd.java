@@ -0,0 +1,65 @@
+/**
+ * MIT License
+ *
+ * Copyright (c) 2022 Geoffrey H. Smith
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package svsutil;
+
+/**
+ * The SIMD CLUT kernel, Java 17 version (see src/main/java for the Java 8
+ * version). The Vector API is an incubator module that the JVM only resolves
+ * when started with --add-modules jdk.incubator.vector, so the kernel itself
+ * is in LutSimdKernel, which is only loaded once the module turns out to be
+ * there; otherwise (or for a raster with more than 4 bytes per pixel) this
+ * falls back to the scalar kernel.
+ * 
+ * @author geoffrey.smith@emory.edu
+ */
+public class LutSimd {
+
+    static final boolean AVAILABLE = vectorModuleResolved();
+
+    static boolean vectorModuleResolved() {
+        try {
+            Class.forName("jdk.incubator.vector.IntVector");
+            return true;
+        }
+        catch(ClassNotFoundException | LinkageError e) {
+            return false;
+        }
+    }
+
+    public static boolean isAvailable() {
+        return AVAILABLE;
+    }
+
+    // see LutKernel.applyInterleaved
+    public static void apply(int[] lut, byte[] data, int offset, int pixelCount, int pixelStride, int[] bandOffsets) {
+        if(AVAILABLE && LutSimdKernel.supports(pixelStride)) {
+            LutSimdKernel.apply(lut, data, offset, pixelCount, pixelStride, bandOffsets);
+        }
+        else {
+            LutKernel.direct(lut, data, offset, pixelCount, pixelStride, bandOffsets);
+        }
+    }
+
+}
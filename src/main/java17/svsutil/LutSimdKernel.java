@@ -0,0 +1,89 @@
+/**
+ * MIT License
+ *
+ * Copyright (c) 2022 Geoffrey H. Smith
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package svsutil;
+
+import jdk.incubator.vector.ByteVector;
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorShuffle;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * Remaps a raster's pixels through the CLUT a vector of pixels at a time,
+ * straight from and back into the raster bytes. A byte vector of the
+ * interleaved samples is shuffled so that each int lane holds one pixel's
+ * B, G and R samples in its low three bytes, which masked to 24 bits is the
+ * pixel's CLUT index; the CLUT entries are gathered in one instruction
+ * (e.g., AVX2 vpgatherdd), and the gathered ints are shuffled back into the
+ * samples' places and stored under a mask that leaves any other bytes of
+ * the pixels (and the next pixels) alone. The pixels that don't fill a
+ * whole vector at the end are looked up one at a time.
+ * 
+ * @author geoffrey.smith@emory.edu
+ */
+public class LutSimdKernel {
+
+    static final VectorSpecies<Byte> BYTE_SPECIES = ByteVector.SPECIES_PREFERRED;
+    static final VectorSpecies<Integer> INT_SPECIES = IntVector.SPECIES_PREFERRED;
+    static final int LANES = INT_SPECIES.length(); // pixels per vector
+
+    // per-thread gather index buffers
+    static final ThreadLocal<int[]> indexBuffers = ThreadLocal.withInitial(() -> new int[LANES]);
+
+    // the pixels have to fit in one byte vector, so pixelStride <= 4
+    public static boolean supports(int pixelStride) {
+        return pixelStride <= BYTE_SPECIES.length() / LANES;
+    }
+
+    public static void apply(int[] lut, byte[] data, int offset, int pixelCount, int pixelStride, int[] bandOffsets) {
+        // byte lane 4x + 2, 4x + 1 and 4x + 0 of int lane x take pixel x's
+        // R, G and B samples, and back again
+        int[] pack = new int[BYTE_SPECIES.length()];
+        int[] unpack = new int[BYTE_SPECIES.length()];
+        boolean[] samples = new boolean[BYTE_SPECIES.length()];
+        for(int x = 0; x < LANES; x++) {
+            for(int component = 0; component < 3; component++) {
+                int sample = x * pixelStride + bandOffsets[component];
+                pack[x * 4 + 2 - component] = sample;
+                unpack[sample] = x * 4 + 2 - component;
+                samples[sample] = true;
+            }
+        }
+        VectorShuffle<Byte> packShuffle = VectorShuffle.fromArray(BYTE_SPECIES, pack, 0);
+        VectorShuffle<Byte> unpackShuffle = VectorShuffle.fromArray(BYTE_SPECIES, unpack, 0);
+        VectorMask<Byte> sampleMask = VectorMask.fromArray(BYTE_SPECIES, samples, 0);
+        int[] indexes = indexBuffers.get();
+        int x = 0;
+        int i = offset;
+        // a vector load reads a whole vector of bytes, which may run past
+        // the last pixel's samples
+        for(; x + LANES <= pixelCount && i + BYTE_SPECIES.length() <= data.length; x += LANES, i += LANES * pixelStride) {
+            ByteVector.fromArray(BYTE_SPECIES, data, i).rearrange(packShuffle).reinterpretAsInts().and(0x00ffffff).intoArray(indexes, 0);
+            IntVector.fromArray(INT_SPECIES, lut, 0, indexes, 0).reinterpretAsBytes().rearrange(unpackShuffle).intoArray(data, i, sampleMask);
+        }
+        LutKernel.direct(lut, data, i, pixelCount - x, pixelStride, bandOffsets);
+    }
+
+}